@@ -0,0 +1,243 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.daffodil.api.Compiler;
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.ProcessorFactory;
+import org.apache.daffodil.api.exceptions.InvalidParserException;
+import org.apache.daffodil.api.validation.ValidatorInitializationException;
+import org.apache.daffodil.api.validation.ValidatorNotRegisteredException;
+
+/**
+ * Stores all parameters needed to create a DataProcessor
+ *
+ * DataProcessors compiled with these parameters are stored in a SchemaCache using the associated
+ * CompilationParams as a key. Any values needed to configure DataProcessor creation or
+ * modification should be added as constructor parameters and hashCode() and equals()
+ * functions updated accordingly. This ensures value equality checks are performed correctly
+ * in the Cache lookup.
+ *
+ * The cache is keyed by the parameters needed to compile or reload a schema, as returned by
+ * withoutValidation(). Each cached CompiledSchema then holds the cheaper withValidation()
+ * variants of that DataProcessor, so a schema is only compiled once regardless of how many
+ * validation modes it is used with.
+ */
+public final class CompilationParams {
+    private final String dfdlSchema;
+    private final boolean preCompiled;
+    private final String validationMode;
+    private final Map<String, String> tunables;
+
+    public CompilationParams(
+        String dfdlSchema,
+        boolean preCompiled,
+        String validationMode) {
+
+        this(dfdlSchema, preCompiled, validationMode, Collections.emptyMap());
+    }
+
+    /**
+     * The tunables are copied, so changing the map afterwards does not change these
+     * parameters or their hashCode while they are a key in the cache
+     */
+    public CompilationParams(
+        String dfdlSchema,
+        boolean preCompiled,
+        String validationMode,
+        Map<String, String> tunables) {
+
+        this.dfdlSchema = dfdlSchema;
+        this.preCompiled = preCompiled;
+        this.validationMode = validationMode;
+        this.tunables = tunables.isEmpty()
+            ? Collections.emptyMap()
+            : Collections.unmodifiableMap(new LinkedHashMap<>(tunables));
+    }
+
+    public String getDfdlSchema() {
+        return dfdlSchema;
+    }
+
+    public boolean isPreCompiled() {
+        return preCompiled;
+    }
+
+    /**
+     * The validation mode, or null for parameters returned by withoutValidation()
+     */
+    public String getValidationMode() {
+        return validationMode;
+    }
+
+    /**
+     * An unmodifiable copy of the Daffodil tunables
+     */
+    public Map<String, String> getTunables() {
+        return tunables;
+    }
+
+    public int hashCode() {
+      return Objects.hash(dfdlSchema, preCompiled, validationMode, tunables);
+    }
+
+    /**
+     * Returns the parameters needed to compile or reload the schema, without a validation
+     * mode. These are used as the key of the compiled schema cache.
+     */
+    public CompilationParams withoutValidation() {
+        return new CompilationParams(dfdlSchema, preCompiled, null, tunables);
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CompilationParams)) return false;
+      if (obj == this) return true;
+
+      CompilationParams that = (CompilationParams)obj;
+      return Objects.equals(this.dfdlSchema, that.dfdlSchema) &&
+             this.preCompiled == that.preCompiled &&
+             Objects.equals(this.validationMode, that.validationMode) &&
+             Objects.equals(this.tunables, that.tunables);
+    }
+
+    /**
+     * Creates a DataProcessor using only state in the compilation parameters
+     *
+     * This function must create and modify a DataProcessor using the provided parameters.
+     * The resulting DataProcessor will be added to a Cache so that this function does not
+     * need to be called again for the same set of parameters. This avoids compiling the
+     * same schema multiple times.
+     *
+     * Note that changes to the DataProcessor (e.g. calls to with*() functions) should not
+     * happen outside of this function, as those changes will not be cached and will need to
+     * be done for every flow file, which could have performance implications.
+     */
+    public DataProcessor newDataProcessor(ClassLoader loader) throws DaffodilCompileException {
+        return applyValidation(compileDataProcessor(loader));
+    }
+
+    /**
+     * Compiles or reloads the schema, ignoring the validation mode. This is the expensive
+     * part of creating a DataProcessor. A dfdlSchema that is not a file is found as a
+     * resource of the given ClassLoader.
+     */
+    public DataProcessor compileDataProcessor(ClassLoader loader) throws DaffodilCompileException {
+
+        // Try to find the schema to compile or reload. If dfdlSchema is a file that exists,
+        // we just use that. If dfdlSchema is not a file, try to find it on the classpath,
+        // most likely in a jar or file found in the 'Plugins and Schemas' property. If the
+        // schema is in a jar, this should be an absolute resource path (i.e. has a leading
+        // slash). If the schema is not in a jar, then it should just be the file name
+        // without a preceding slash. The latter works because of NiFis InstanceClassLoader,
+        // which makes non-jar files available via getResource by just the file name.
+        URL schemaURL = null;
+        File f = new File(this.dfdlSchema);
+        if (f.isFile()) {
+            try {
+                schemaURL = f.toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new DaffodilCompileException("Invalid 'DFDL Schema File' property: " + e);
+            }
+        } else {
+            // it is important to use ClassLoader.getResource() here. If we just do
+            // getClass.getResource() then Java will prepend the classes package to
+            // dfdlSchema values that are not absolute, which breaks the ability for the
+            // InstanceClassLoader to find non-jar resources
+            schemaURL = loader.getResource(this.dfdlSchema);
+        }
+
+        if (schemaURL == null) {
+            throw new DaffodilCompileException("Failed to find 'DFDL Schema File' property as a file or in 'Plugins and Schemas': " + this.dfdlSchema);
+        }
+
+        Compiler c = Daffodil.compiler();
+        if (!this.tunables.isEmpty()) {
+            try {
+                c = c.withTunables(this.tunables);
+            } catch (IllegalArgumentException e) {
+                throw new DaffodilCompileException("Invalid 'Daffodil Tunables' property: " + e.getMessage());
+            }
+        }
+        DataProcessor dp;
+        if (this.preCompiled) {
+            try {
+                InputStream is = schemaURL.openStream();
+                ReadableByteChannel rbc = Channels.newChannel(is);
+                dp = c.reload(rbc);
+                rbc.close();
+                is.close();
+            } catch (InvalidParserException|IOException e) {
+                throw new DaffodilCompileException("Failed to reload pre-compiled DFDL schema: " + this.dfdlSchema + ". " + e.getMessage());
+            }
+            // a reloaded parser uses the tunables it was saved with, so runtime tunables
+            // must be applied to the DataProcessor as well
+            if (!this.tunables.isEmpty()) {
+                try {
+                    dp = dp.withTunables(this.tunables);
+                } catch (IllegalArgumentException e) {
+                    throw new DaffodilCompileException("Invalid 'Daffodil Tunables' property: " + e.getMessage());
+                }
+            }
+        } else {
+            try {
+                ProcessorFactory pf = c.compileSource(schemaURL.toURI());
+                if (pf.isError()) {
+                    throw new DaffodilCompileException("Failed to compile DFDL schema: " + this.dfdlSchema, pf.getDiagnostics());
+                }
+                dp = pf.onPath("/");
+                if (dp.isError()) {
+                    throw new DaffodilCompileException("Failed to compile DFDL schema: " + this.dfdlSchema, dp.getDiagnostics());
+                }
+            } catch (URISyntaxException e) {
+                throw new AssertionError("invalid URI should no be possible: " + e);
+            }
+        }
+        return dp;
+    }
+
+    /**
+     * Returns a copy of a DataProcessor created by compileDataProcessor with the validation
+     * mode of these parameters. This is cheap compared to compiling.
+     */
+    public DataProcessor applyValidation(DataProcessor compiled) throws DaffodilCompileException {
+        DataProcessor dp;
+        try {
+            dp = compiled.withValidation(this.validationMode, new File(this.dfdlSchema).toURI().toURL());
+        } catch (MalformedURLException e) {
+            throw new AssertionError("could not convert schema to valid URL: " + e);
+        } catch (ValidatorNotRegisteredException e) {
+            throw new AssertionError("validator does not exist: " + e);
+        } catch (ValidatorInitializationException e) {
+            throw new DaffodilCompileException("Failed to initialize validator: " + this.dfdlSchema + ". " + e.getMessage());
+        }
+        return dp;
+    }
+}
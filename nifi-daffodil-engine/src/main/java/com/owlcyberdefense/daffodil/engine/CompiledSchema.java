@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.daffodil.api.DataProcessor;
+
+/**
+ * A compiled or reloaded schema and the DataProcessors derived from it for
+ * each validation mode it has been used with. Evicting a CompiledSchema
+ * from the cache evicts all of its validation variants with it.
+ */
+public class CompiledSchema {
+    final DataProcessor compiled;
+    private final ConcurrentHashMap<String, DataProcessor> variants = new ConcurrentHashMap<>();
+
+    public CompiledSchema(DataProcessor compiled) {
+        this.compiled = compiled;
+    }
+
+    public DataProcessor getDataProcessor(CompilationParams params) throws DaffodilCompileException {
+        DataProcessor dp = variants.get(params.getValidationMode());
+        if (dp == null) {
+            // Two threads could both create the same variant, but that is cheap and
+            // harmless, and avoids holding a lock while creating a validator
+            dp = params.applyValidation(compiled);
+            final DataProcessor existing = variants.putIfAbsent(params.getValidationMode(), dp);
+            if (existing != null) {
+                dp = existing;
+            }
+        }
+        return dp;
+    }
+}
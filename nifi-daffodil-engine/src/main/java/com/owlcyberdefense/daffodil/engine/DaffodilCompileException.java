@@ -14,25 +14,48 @@
  * limitations under the License.
  */
 
-package com.owlcyberdefense.nifi.processors;
+package com.owlcyberdefense.daffodil.engine;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.daffodil.api.Diagnostic;
 
 public class DaffodilCompileException extends Exception {
 
+    private final List<Diagnostic> diagnostics;
+
     public DaffodilCompileException() {
         super();
+        this.diagnostics = Collections.emptyList();
     }
 
     public DaffodilCompileException(String message) {
         super(message);
+        this.diagnostics = Collections.emptyList();
+    }
+
+    public DaffodilCompileException(String message, List<Diagnostic> diagnostics) {
+        super(message);
+        this.diagnostics = diagnostics;
     }
 
     public DaffodilCompileException(String message, Throwable cause) {
         super(message, cause);
+        this.diagnostics = Collections.emptyList();
     }
 
     public DaffodilCompileException(Throwable cause) {
         super(cause);
+        this.diagnostics = Collections.emptyList();
+    }
+
+    /**
+     * The Daffodil diagnostics of a schema that failed to compile, or an
+     * empty list if the failure was not reported by Daffodil
+     */
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
     }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DaffodilParseXMLReader;
+import org.apache.daffodil.api.DaffodilUnparseContentHandler;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.InputSourceDataInputStream;
+import org.apache.daffodil.api.ParseResult;
+import org.apache.daffodil.api.UnparseResult;
+import org.apache.daffodil.api.exceptions.ExternalVariableException;
+import org.apache.daffodil.api.infoset.InfosetInputter;
+import org.apache.daffodil.api.infoset.InfosetOutputter;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Compiles, caches, and runs DFDL schemas independently of NiFi, so the same
+ * engine used by the processors can be embedded in other applications or
+ * benchmarked on its own. Every parse and unparse done by the processors,
+ * including SAX parses and unparses and parses of continuous streams, goes
+ * through an engine.
+ *
+ * The engine does not decide what to do with the results. Reading compressed
+ * or partial content, sampling for validation or infoset statistics, logging
+ * diagnostics, XSLT stylesheets, and routing FlowFiles with left over data
+ * are NiFi processor configuration and remain in the processors.
+ *
+ * An engine is safe to use from any number of threads. DataProcessors are
+ * immutable and may be shared, but the InfosetOutputters, InfosetInputters,
+ * and streams passed to parse and unparse must not be used by more than one
+ * thread at a time.
+ */
+public final class DaffodilEngine {
+
+    /**
+     * Daffodil makes the ParseResult of a SAX parse available as a property
+     * of the XMLReader with this name
+     */
+    public static final String SAX_PARSE_RESULT_PROPERTY = "urn:ogf:dfdl:2013:imp:daffodil.apache.org:2018:sax:ParseResult";
+
+    private final ClassLoader loader;
+    private final SchemaCache cache;
+
+    /**
+     * Creates an engine that finds schemas that are not files with the given
+     * ClassLoader, and caches compiled schemas in the given cache. If the cache
+     * is null, every call to getDataProcessor compiles the schema again.
+     */
+    public DaffodilEngine(ClassLoader loader, SchemaCache cache) {
+        this.loader = loader;
+        this.cache = cache;
+    }
+
+    /**
+     * The cache of compiled schemas, or null if caching is disabled
+     */
+    public SchemaCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the DataProcessor for the parameters, from the cache if possible
+     */
+    public DataProcessor getDataProcessor(CompilationParams params) throws DaffodilCompileException {
+        if (cache != null) {
+            return cache.getDataProcessor(params);
+        } else {
+            return params.newDataProcessor(loader);
+        }
+    }
+
+    /**
+     * Returns the DataProcessor for the parameters with external variables
+     * bound. Binding variables is cheap, so DataProcessors with variables are
+     * not cached.
+     */
+    public DataProcessor getDataProcessor(CompilationParams params, Map<String, String> variables) throws DaffodilCompileException, ExternalVariableException {
+        final DataProcessor dp = getDataProcessor(params);
+        return variables.isEmpty() ? dp : dp.withExternalVariables(variables);
+    }
+
+    /**
+     * Returns true if the schema of the parameters is compiled and cached
+     */
+    public boolean isCached(CompilationParams params) {
+        return cache != null && cache.isCached(params);
+    }
+
+    /**
+     * Returns the total estimated size in bytes of all cached DataProcessors, or
+     * zero if the cache is not limited by memory
+     */
+    public long getCacheWeight() {
+        return cache != null ? cache.getWeight() : 0;
+    }
+
+    /**
+     * Parse data from a stream, writing the infoset to the outputter. Data
+     * following the parsed data may have been read from the stream.
+     */
+    public ParseResult parse(DataProcessor dp, InputStream in, InfosetOutputter outputter) {
+        return dp.parse(Daffodil.newInputSourceDataInputStream(in), outputter);
+    }
+
+    /**
+     * Parse the remaining bytes of a buffer, writing the infoset to the
+     * outputter. The position of the buffer is not changed, the number of bytes
+     * parsed is given by the location of the ParseResult.
+     */
+    public ParseResult parse(DataProcessor dp, ByteBuffer data, InfosetOutputter outputter) {
+        return dp.parse(Daffodil.newInputSourceDataInputStream(data.slice()), outputter);
+    }
+
+    /**
+     * Parse the next data of an InputSourceDataInputStream, writing the
+     * infoset to the outputter. Each parse of the same input continues where
+     * the previous one stopped, which is used to parse consecutive messages
+     * of a stream.
+     */
+    public ParseResult parse(DataProcessor dp, InputSourceDataInputStream in, InfosetOutputter outputter) {
+        return dp.parse(in, outputter);
+    }
+
+    /**
+     * Parse data from a stream, passing the infoset as SAX events to the
+     * handler, for example an XSLT transform or the content handler of an
+     * unparse. An exception thrown by the handler stops the parse and is
+     * thrown from this method, in which case no ParseResult is available.
+     */
+    public ParseResult parse(DataProcessor dp, InputStream in, ContentHandler handler) throws SAXException {
+        final DaffodilParseXMLReader reader = dp.newXMLReaderInstance();
+        reader.setContentHandler(handler);
+        reader.parse(Daffodil.newInputSourceDataInputStream(in));
+        return (ParseResult) reader.getProperty(SAX_PARSE_RESULT_PROPERTY);
+    }
+
+    /**
+     * The number of bits consumed by a parse
+     */
+    public static long getBitsConsumed(ParseResult pr) {
+        return pr.location().bitPos1b() - 1;
+    }
+
+    /**
+     * The number of bits of the input that a parse did not consume, given the
+     * size of the input in bytes. A successful parse of data that should be
+     * parsed completely, such as a file, has left over data if this is not
+     * zero.
+     */
+    public static long getLeftOverBits(ParseResult pr, long inputSize) {
+        return inputSize * 8 - getBitsConsumed(pr);
+    }
+
+    /**
+     * Unparse the infoset read by the inputter, writing data to the channel
+     */
+    public UnparseResult unparse(DataProcessor dp, InfosetInputter inputter, WritableByteChannel out) {
+        return dp.unparse(inputter, out);
+    }
+
+    /**
+     * Unparse the infoset read by the inputter, writing data to the stream
+     */
+    public UnparseResult unparse(DataProcessor dp, InfosetInputter inputter, OutputStream out) {
+        return dp.unparse(inputter, Channels.newChannel(out));
+    }
+
+    /**
+     * Returns a SAX content handler that unparses the infoset events passed
+     * to it, writing data to the channel. The unparse runs incrementally as
+     * events arrive, and its result is available from the handler once the
+     * document has ended.
+     */
+    public DaffodilUnparseContentHandler newContentHandler(DataProcessor dp, WritableByteChannel out) {
+        return dp.newContentHandlerInstance(out);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import org.apache.daffodil.api.DataProcessor;
+
+/**
+ * A thread-safe cache of compiled DFDL schemas, keyed by the parameters
+ * needed to compile or reload them. A schema missing from the cache is
+ * compiled by the first thread that needs it, while any others needing the
+ * same schema wait for it rather than compiling it again.
+ *
+ * The cache is limited either by the number of compiled schemas, or by
+ * their total estimated memory, and optionally removes compiled schemas that
+ * have not been used for some time.
+ */
+public final class SchemaCache {
+
+    /**
+     * Notified as compiled schemas are added to and removed from a cache
+     * limited by memory, e.g. to log the estimated size of the cache
+     */
+    public interface Listener {
+        void cached(CompilationParams params, int weight, long totalWeight);
+
+        void removed(CompilationParams params, Integer weight, String cause, long totalWeight);
+
+        void sizeEstimateFailed(CompilationParams params);
+    }
+
+    private final LoadingCache<CompilationParams, CompiledSchema> cache;
+
+    /**
+     * Estimated size in bytes of each DataProcessor in the cache, only used when
+     * the cache is limited by memory
+     */
+    private final Map<CompilationParams, Integer> weights = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache limited by maxBytes if a listener is given, otherwise by
+     * maxSize
+     */
+    private SchemaCache(long maxSize, long maxBytes, long ttlSeconds, final ClassLoader loader, final Listener listener) {
+        CacheBuilder cacheBuilder;
+        if (listener != null) {
+            // A single segment is used so that one large compiled schema can use up to the full
+            // maximum weight. Guava otherwise splits the maximum weight evenly among segments
+            cacheBuilder = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<CompilationParams, CompiledSchema>() {
+                    public int weigh(CompilationParams params, CompiledSchema compiledSchema) {
+                        final long size = estimateSize(compiledSchema.compiled);
+                        if (size < 0) {
+                            listener.sizeEstimateFailed(params);
+                        }
+                        final int weight = (int) Math.min(Math.max(size, 0), Integer.MAX_VALUE);
+                        weights.put(params, weight);
+                        listener.cached(params, weight, getWeight());
+                        return weight;
+                    }
+                })
+                .removalListener(new RemovalListener<CompilationParams, CompiledSchema>() {
+                    public void onRemoval(RemovalNotification<CompilationParams, CompiledSchema> notification) {
+                        final Integer weight = weights.remove(notification.getKey());
+                        listener.removed(notification.getKey(), weight, notification.getCause().toString(), getWeight());
+                    }
+                });
+        } else {
+            cacheBuilder = CacheBuilder.newBuilder().maximumSize(maxSize);
+        }
+        if (ttlSeconds > 0) {
+            cacheBuilder = cacheBuilder.expireAfterAccess(ttlSeconds, TimeUnit.SECONDS);
+        }
+
+        cache = cacheBuilder.build(
+           new CacheLoader<CompilationParams, CompiledSchema>() {
+               public CompiledSchema load(CompilationParams params) throws DaffodilCompileException {
+                   return new CompiledSchema(params.compileDataProcessor(loader));
+               }
+           });
+    }
+
+    /**
+     * Creates a cache holding at most maxSize compiled schemas. Schemas are
+     * found with the given ClassLoader if they are not files, and are removed
+     * after ttlSeconds without being used if ttlSeconds is positive.
+     */
+    public static SchemaCache ofMaximumSize(long maxSize, long ttlSeconds, ClassLoader loader) {
+        return new SchemaCache(maxSize, 0, ttlSeconds, loader, null);
+    }
+
+    /**
+     * Creates a cache whose compiled schemas have a total estimated size of at
+     * most maxBytes, where the size of each is estimated by the size of its
+     * saved parser. The listener is told of every added or removed schema.
+     */
+    public static SchemaCache ofMaximumMemory(long maxBytes, long ttlSeconds, ClassLoader loader, Listener listener) {
+        return new SchemaCache(0, maxBytes, ttlSeconds, loader, listener);
+    }
+
+    /**
+     * Returns the DataProcessor for the parameters, compiling the schema if it
+     * is not already cached and creating the validation variant if it has not
+     * been used before
+     */
+    public DataProcessor getDataProcessor(CompilationParams params) throws DaffodilCompileException {
+        final CompiledSchema compiledSchema;
+        try {
+            compiledSchema = cache.get(params.withoutValidation());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DaffodilCompileException) {
+                throw (DaffodilCompileException) e.getCause();
+            }
+            throw new DaffodilCompileException(e);
+        }
+        return compiledSchema.getDataProcessor(params);
+    }
+
+    /**
+     * Returns true if the schema of the parameters is compiled and cached,
+     * regardless of validation mode
+     */
+    public boolean isCached(CompilationParams params) {
+        return cache.getIfPresent(params.withoutValidation()) != null;
+    }
+
+    /**
+     * Returns the total estimated size in bytes of all cached DataProcessors, or
+     * zero if the cache is not limited by memory
+     */
+    public long getWeight() {
+        long total = 0;
+        for (Integer weight : weights.values()) {
+            total += weight;
+        }
+        return total;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * WritableByteChannel that discards everything written to it, keeping
+     * only a count of the bytes
+     */
+    private static class CountingChannel implements WritableByteChannel {
+        long count = 0;
+
+        @Override
+        public int write(ByteBuffer src) {
+            final int len = src.remaining();
+            src.position(src.limit());
+            count += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() { }
+    }
+
+    /**
+     * Estimates the heap used by a DataProcessor as the size of its saved
+     * parser. This is not exact, but is proportional to the size of the
+     * compiled schema, which is what matters when deciding what to evict.
+     * Returns -1 if the size could not be estimated.
+     */
+    public static long estimateSize(DataProcessor dp) {
+        final CountingChannel channel = new CountingChannel();
+        try {
+            dp.save(channel);
+        } catch (Exception e) {
+            return -1;
+        }
+        return channel.count;
+    }
+}
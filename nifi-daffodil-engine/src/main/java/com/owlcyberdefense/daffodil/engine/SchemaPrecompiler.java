@@ -0,0 +1,120 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.daffodil.api.Compiler;
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.Diagnostic;
+import org.apache.daffodil.api.ProcessorFactory;
+import org.apache.daffodil.api.WithDiagnostics;
+
+/**
+ * Compiles DFDL schemas and saves the resulting parsers, for use with the
+ * 'Pre-compiled Schema' property.
+ *
+ * Saved parsers can only be reloaded by the same version of Daffodil that
+ * created them. This is run during the build (see the nifi-daffodil-schemas
+ * module) using the Daffodil version these processors depend on, so the
+ * saved parsers it creates are always compatible.
+ *
+ * Every file ending in .dfdl.xsd directly in the schema directory is
+ * compiled and saved to the output directory with the .dfdl.xsd extension
+ * replaced by .bin. Subdirectories are not searched, so schemas that are
+ * only included or imported by other schemas should be put in them.
+ */
+public final class SchemaPrecompiler {
+
+    static final String SCHEMA_SUFFIX = ".dfdl.xsd";
+    static final String PARSER_SUFFIX = ".bin";
+
+    private SchemaPrecompiler() { }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("usage: SchemaPrecompiler <schema directory> <output directory>");
+        }
+        final List<Path> saved = precompile(Paths.get(args[0]), Paths.get(args[1]));
+        for (Path parser : saved) {
+            System.out.println("Saved pre-compiled DFDL schema " + parser);
+        }
+    }
+
+    /**
+     * Compile all DFDL schemas in a directory, returning the paths of the
+     * saved parsers. A schema directory that does not exist is treated as
+     * empty.
+     */
+    public static List<Path> precompile(Path schemaDir, Path outputDir) throws IOException {
+        if (!Files.isDirectory(schemaDir)) {
+            return Collections.emptyList();
+        }
+
+        final List<Path> schemas = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(schemaDir, "*" + SCHEMA_SUFFIX)) {
+            for (Path schema : stream) {
+                if (Files.isRegularFile(schema)) {
+                    schemas.add(schema);
+                }
+            }
+        }
+        Collections.sort(schemas);
+
+        final Compiler c = Daffodil.compiler();
+        final List<Path> saved = new ArrayList<>();
+        for (Path schema : schemas) {
+            final ProcessorFactory pf = c.compileFile(schema.toFile());
+            checkDiagnostics(schema, pf);
+            final DataProcessor dp = pf.onPath("/");
+            checkDiagnostics(schema, dp);
+
+            final String name = schema.getFileName().toString();
+            final Path parser = outputDir.resolve(name.substring(0, name.length() - SCHEMA_SUFFIX.length()) + PARSER_SUFFIX);
+            Files.createDirectories(outputDir);
+            try (WritableByteChannel channel = Files.newByteChannel(parser,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                dp.save(channel);
+            }
+            saved.add(parser);
+        }
+        return saved;
+    }
+
+    private static void checkDiagnostics(Path schema, WithDiagnostics withDiags) throws IOException {
+        if (!withDiags.isError()) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder("Failed to compile DFDL schema: " + schema);
+        for (Diagnostic diag : withDiags.getDiagnostics()) {
+            if (diag.isError()) {
+                sb.append(System.lineSeparator()).append(diag.toString());
+            }
+        }
+        throw new IOException(sb.toString());
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import org.apache.daffodil.api.validation.ValidationHandler;
+import org.apache.daffodil.api.validation.Validator;
+import org.apache.daffodil.api.validation.ValidatorFactory;
+import org.apache.daffodil.api.validation.ValidatorInitializationException;
+
+/**
+ * A Daffodil validator that performs the same XSD validation as the built-in
+ * "xerces" validator, but shares the parsed XML Schema grammar between all
+ * DataProcessors that validate against the same schema.
+ *
+ * The built-in validator parses the full set of schema files every time
+ * withValidation() is called, which happens for every compiled schema in the
+ * cache, including after an eviction. For large schema sets this is a
+ * significant part of the time and memory needed to create a DataProcessor.
+ * A javax.xml.validation.Schema is immutable and thread safe, so this factory
+ * instead keeps a single Schema for each root schema and creates cheap
+ * per-document validators from it.
+ *
+ * A grammar is only reused if the content of every file it was created from
+ * is unchanged, so editing any of the schema files causes the next
+ * DataProcessor to parse the grammar again.
+ *
+ * This is registered with Daffodil via META-INF/services.
+ */
+public class SharedGrammarValidatorFactory implements ValidatorFactory {
+
+    public static final String NAME = "nifi-shared-xerces";
+
+    /**
+     * Daffodil passes the URL given to withValidation() as a property with the
+     * name of the validator, older versions use this generic key instead
+     */
+    private static final String ROOT_SCHEMA_KEY = "daffodil.rootSchema";
+
+    private static final ConcurrentHashMap<String, SharedGrammar> grammars = new ConcurrentHashMap<>();
+
+    /**
+     * A parsed grammar and a digest of the content of all the schema files
+     * that were read to create it
+     */
+    static final class SharedGrammar {
+        final Schema schema;
+        final Set<URL> sources;
+        final byte[] digest;
+
+        SharedGrammar(Schema schema, Set<URL> sources, byte[] digest) {
+            this.schema = schema;
+            this.sources = sources;
+            this.digest = digest;
+        }
+
+        boolean isCurrent() {
+            try {
+                return Arrays.equals(digest, digestOf(sources));
+            } catch (IOException e) {
+                // a schema file was removed or can no longer be read
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public Validator make(Properties config) throws ValidatorInitializationException {
+        String rootSchema = config.getProperty(NAME, config.getProperty(ROOT_SCHEMA_KEY));
+        if (rootSchema == null) {
+            throw new ValidatorInitializationException("No schema provided for " + NAME + " validation");
+        }
+        return new SharedGrammarValidator(getSchema(rootSchema));
+    }
+
+    /**
+     * Get the shared grammar for a root schema URL, parsing it only if it
+     * has not been parsed before or if any of its files have changed
+     */
+    static Schema getSchema(String rootSchema) throws ValidatorInitializationException {
+        SharedGrammar grammar = grammars.get(rootSchema);
+        if (grammar != null && grammar.isCurrent()) {
+            return grammar.schema;
+        }
+        // Only one thread parses a grammar, any others wanting the same schema wait for it
+        // instead of parsing it again
+        synchronized (grammars) {
+            grammar = grammars.get(rootSchema);
+            if (grammar == null || !grammar.isCurrent()) {
+                grammar = loadGrammar(rootSchema);
+                grammars.put(rootSchema, grammar);
+            }
+        }
+        return grammar.schema;
+    }
+
+    public static int getSharedGrammarCount() {
+        return grammars.size();
+    }
+
+    private static SharedGrammar loadGrammar(String rootSchema) throws ValidatorInitializationException {
+        try {
+            final URL rootURL = new URL(rootSchema);
+            final Set<URL> sources = new LinkedHashSet<>();
+            sources.add(rootURL);
+
+            final SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            factory.setResourceResolver(new RecordingResourceResolver(sources));
+            final Schema schema = factory.newSchema(rootURL);
+            return new SharedGrammar(schema, sources, digestOf(sources));
+        } catch (SAXException | IOException | ParserConfigurationException e) {
+            throw new ValidatorInitializationException("Failed to parse schema " + rootSchema + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] digestOf(Set<URL> sources) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not supported: " + e);
+        }
+        final byte[] buf = new byte[8192];
+        for (URL source : sources) {
+            md.update(source.toString().getBytes("UTF-8"));
+            try (InputStream is = source.openStream()) {
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                }
+            }
+        }
+        return md.digest();
+    }
+
+    /**
+     * Resolves schemaLocations the same way Daffodil does, relative to the
+     * including schema first and then as a resource on the classpath (e.g.
+     * the DFDLGeneralFormat schema in the Daffodil jar), and records every
+     * file that is used so the grammar can be checked for changes.
+     */
+    private static class RecordingResourceResolver implements LSResourceResolver {
+        private final Set<URL> sources;
+        private final DOMImplementationLS domLS;
+
+        RecordingResourceResolver(Set<URL> sources) throws ParserConfigurationException {
+            this.sources = sources;
+            this.domLS = (DOMImplementationLS) DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().getDOMImplementation().getFeature("LS", "3.0");
+        }
+
+        @Override
+        public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+            if (systemId == null) {
+                return null;
+            }
+            URL resolved = null;
+            try {
+                final URL candidate = baseURI == null ? new URL(systemId) : new URL(new URL(baseURI), systemId);
+                if (exists(candidate)) {
+                    resolved = candidate;
+                }
+            } catch (MalformedURLException e) {
+                // not a URL or relative to a base, fall through to the classpath
+            }
+            if (resolved == null) {
+                final String resource = systemId.startsWith("/") ? systemId.substring(1) : systemId;
+                resolved = SharedGrammarValidatorFactory.class.getClassLoader().getResource(resource);
+            }
+            if (resolved == null) {
+                // let the schema factory report the missing file
+                return null;
+            }
+            sources.add(resolved);
+            final LSInput input = domLS.createLSInput();
+            input.setPublicId(publicId);
+            input.setSystemId(resolved.toString());
+            input.setBaseURI(baseURI);
+            return input;
+        }
+
+        private static boolean exists(URL url) {
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    return new File(url.toURI()).isFile();
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    return false;
+                }
+            }
+            try (InputStream is = url.openStream()) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Validates each document with a new javax.xml.validation.Validator,
+     * which is not thread safe but is cheap to create from the shared Schema
+     */
+    private static class SharedGrammarValidator implements Validator {
+        private final Schema schema;
+
+        SharedGrammarValidator(Schema schema) {
+            this.schema = schema;
+        }
+
+        @Override
+        public void validateXML(InputStream document, ValidationHandler handler) {
+            final javax.xml.validation.Validator validator = schema.newValidator();
+            validator.setErrorHandler(new ErrorHandler() {
+                @Override
+                public void warning(SAXParseException e) {
+                    // warnings are ignored, the same as the built-in validator
+                }
+
+                @Override
+                public void error(SAXParseException e) {
+                    handler.validationError(e.getMessage());
+                }
+
+                @Override
+                public void fatalError(SAXParseException e) throws SAXParseException {
+                    handler.validationError(e.getMessage());
+                    throw e;
+                }
+            });
+            try {
+                validator.validate(new StreamSource(document));
+            } catch (SAXParseException e) {
+                // already reported by fatalError
+            } catch (SAXException | IOException e) {
+                handler.validationErrorNoContext(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.daffodil.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DaffodilUnparseContentHandler;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.ParseResult;
+import org.apache.daffodil.api.UnparseResult;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDaffodilEngine {
+
+    private static final String BITLENGTH_SCHEMA = "src/test/resources/TestDaffodilEngine/bitlength.dfdl.xsd";
+
+    private static DaffodilEngine newEngine() {
+        return new DaffodilEngine(TestDaffodilEngine.class.getClassLoader(),
+            SchemaCache.ofMaximumSize(10, 0, TestDaffodilEngine.class.getClassLoader()));
+    }
+
+    @Test
+    public void testCompilationParamsEquality() {
+        CompilationParams ck1 = new CompilationParams("one", false, "off");
+        CompilationParams ck2 = new CompilationParams("one", false, "off");
+        CompilationParams ck3 = new CompilationParams("two", false, "off");
+        CompilationParams ck4 = new CompilationParams("one", true, "off");
+        CompilationParams ck5 = new CompilationParams("two", true, "off");
+        CompilationParams ck6 = new CompilationParams("one", false, "limited");
+
+        assertTrue(ck1.equals(ck2));
+        assertTrue(ck1.hashCode() == ck2.hashCode());
+
+        assertFalse(ck1.equals(ck3));
+        assertFalse(ck1.hashCode() == ck3.hashCode());
+
+        assertFalse(ck1.equals(ck4));
+        assertFalse(ck1.hashCode() == ck4.hashCode());
+
+        assertFalse(ck1.equals(ck5));
+        assertFalse(ck1.hashCode() == ck5.hashCode());
+
+        assertFalse(ck1.equals(ck6));
+        assertFalse(ck1.hashCode() == ck6.hashCode());
+    }
+
+    @Test
+    public void testCompilationParamsWithoutValidation() {
+        CompilationParams off = new CompilationParams("one", false, "off");
+        CompilationParams limited = new CompilationParams("one", false, "limited");
+        CompilationParams other = new CompilationParams("two", false, "off");
+
+        assertTrue(off.withoutValidation().equals(limited.withoutValidation()));
+        assertTrue(off.withoutValidation().hashCode() == limited.withoutValidation().hashCode());
+        assertFalse(off.withoutValidation().equals(other.withoutValidation()));
+        assertFalse(off.withoutValidation().equals(off));
+    }
+
+    @Test
+    public void testCompilationParamsCopiesTunables() {
+        final Map<String, String> tunables = new HashMap<>();
+        tunables.put("maxOccursBounds", "10");
+        final CompilationParams params = new CompilationParams("one", false, "off", tunables);
+        final int hash = params.hashCode();
+
+        // changing the caller's map does not change a key already in the cache
+        tunables.put("maxOccursBounds", "20");
+        assertEquals(hash, params.hashCode());
+        assertEquals("10", params.getTunables().get("maxOccursBounds"));
+        try {
+            params.getTunables().put("maxOccursBounds", "20");
+            fail("expected the tunables to be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompiledSchemaValidationVariants() throws DaffodilCompileException {
+        final String schema = "src/test/resources/TestDaffodilEngine/csv.dfdl.xsd";
+        final CompilationParams off = new CompilationParams(schema, false, "off");
+        final CompilationParams limited = new CompilationParams(schema, false, "daffodil");
+
+        final CompiledSchema compiledSchema = new CompiledSchema(off.compileDataProcessor(getClass().getClassLoader()));
+        final DataProcessor dpOff = compiledSchema.getDataProcessor(off);
+        final DataProcessor dpLimited = compiledSchema.getDataProcessor(limited);
+
+        assertSame(dpOff, compiledSchema.getDataProcessor(off));
+        assertSame(dpLimited, compiledSchema.getDataProcessor(limited));
+        assertNotSame(dpOff, dpLimited);
+    }
+
+    @Test
+    public void testSchemaCacheCompilesOnce() throws DaffodilCompileException {
+        final DaffodilEngine engine = newEngine();
+        final CompilationParams params = new CompilationParams(BITLENGTH_SCHEMA, false, "off");
+        assertFalse(engine.isCached(params));
+        final DataProcessor dp = engine.getDataProcessor(params);
+        assertTrue(engine.isCached(params));
+        assertTrue(engine.isCached(new CompilationParams(BITLENGTH_SCHEMA, false, "daffodil")));
+        assertSame(dp, engine.getDataProcessor(params));
+        assertEquals(0, engine.getCacheWeight());
+    }
+
+    @Test
+    public void testSchemaCacheMaximumMemory() throws DaffodilCompileException {
+        final long[] cached = new long[1];
+        final SchemaCache cache = SchemaCache.ofMaximumMemory(1024L * 1024 * 1024, 0, getClass().getClassLoader(), new SchemaCache.Listener() {
+            public void cached(CompilationParams params, int weight, long totalWeight) { cached[0] = totalWeight; }
+            public void removed(CompilationParams params, Integer weight, String cause, long totalWeight) { cached[0] = totalWeight; }
+            public void sizeEstimateFailed(CompilationParams params) { fail("size of " + params.getDfdlSchema() + " not estimated"); }
+        });
+        final DaffodilEngine engine = new DaffodilEngine(getClass().getClassLoader(), cache);
+        engine.getDataProcessor(new CompilationParams(BITLENGTH_SCHEMA, false, "off"));
+        assertTrue(engine.getCacheWeight() > 0);
+        assertEquals(engine.getCacheWeight(), cached[0]);
+        cache.invalidateAll();
+        assertEquals(0, engine.getCacheWeight());
+        assertEquals(0, cached[0]);
+    }
+
+    @Test
+    public void testCompileFailureDiagnostics() {
+        final DaffodilEngine engine = new DaffodilEngine(getClass().getClassLoader(), null);
+        try {
+            engine.getDataProcessor(new CompilationParams("src/test/resources/TestDaffodilEngine/csv-invalid.dfdl.xsd", false, "off"));
+            fail("expected the schema to fail to compile");
+        } catch (DaffodilCompileException e) {
+            assertTrue(e.getMessage().startsWith("Failed to compile DFDL schema"));
+            assertFalse(e.getDiagnostics().isEmpty());
+        }
+        try {
+            engine.getDataProcessor(new CompilationParams("does-not-exist.dfdl.xsd", false, "off"));
+            fail("expected the schema to not be found");
+        } catch (DaffodilCompileException e) {
+            assertTrue(e.getDiagnostics().isEmpty());
+        }
+    }
+
+    @Test
+    public void testParseStreamAndByteBuffer() throws Exception {
+        final DaffodilEngine engine = newEngine();
+        final DataProcessor dp = engine.getDataProcessor(new CompilationParams(BITLENGTH_SCHEMA, false, "off"),
+            Collections.singletonMap("byteOrder", "bigEndian"));
+        final byte[] data = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilEngine/noleftover.bin"));
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilEngine/noleftover.bin.xml")), StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream fromStream = new ByteArrayOutputStream();
+        ParseResult pr = engine.parse(dp, new ByteArrayInputStream(data), Daffodil.newXMLTextInfosetOutputter(fromStream, false));
+        assertFalse(pr.isError());
+        assertEquals(0, DaffodilEngine.getLeftOverBits(pr, data.length));
+        assertEquals(expected, new String(fromStream.toByteArray(), StandardCharsets.UTF_8));
+
+        // only the remaining bytes of the buffer are parsed, and its position is not changed
+        final ByteBuffer buffer = ByteBuffer.allocate(data.length + 2);
+        buffer.put(new byte[] { 1, 2 }).put(data).flip().position(2);
+        final ByteArrayOutputStream fromBuffer = new ByteArrayOutputStream();
+        pr = engine.parse(dp, buffer, Daffodil.newXMLTextInfosetOutputter(fromBuffer, false));
+        assertFalse(pr.isError());
+        assertEquals(data.length * 8L, DaffodilEngine.getBitsConsumed(pr));
+        assertEquals(16, DaffodilEngine.getLeftOverBits(pr, data.length + 2));
+        assertEquals(2, buffer.position());
+        assertEquals(expected, new String(fromBuffer.toByteArray(), StandardCharsets.UTF_8));
+
+        // a SAX parse passed directly to a SAX unparse reproduces the data
+        final ByteArrayOutputStream transcoded = new ByteArrayOutputStream();
+        final DaffodilUnparseContentHandler handler = engine.newContentHandler(dp, Channels.newChannel(transcoded));
+        pr = engine.parse(dp, new ByteArrayInputStream(data), handler);
+        assertFalse(pr.isError());
+        assertFalse(handler.getUnparseResult().isError());
+        assertArrayEquals(data, transcoded.toByteArray());
+
+        final ByteArrayOutputStream unparsed = new ByteArrayOutputStream();
+        final UnparseResult ur = engine.unparse(dp, Daffodil.newXMLTextInfosetInputter(new ByteArrayInputStream(expected.getBytes(StandardCharsets.UTF_8))), unparsed);
+        assertFalse(ur.isError());
+        assertArrayEquals(data, unparsed.toByteArray());
+    }
+
+    @Test
+    public void testSharedGrammarReused() throws Exception {
+        File xsd = File.createTempFile("nifi-daffodil-", ".xsd");
+        xsd.deleteOnExit();
+        Files.write(xsd.toPath(), "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"a\" type=\"xs:int\"/></xs:schema>".getBytes(StandardCharsets.UTF_8));
+        final String url = xsd.toURI().toURL().toString();
+
+        javax.xml.validation.Schema first = SharedGrammarValidatorFactory.getSchema(url);
+        assertSame(first, SharedGrammarValidatorFactory.getSchema(url));
+
+        // changing the schema content causes the grammar to be parsed again
+        Files.write(xsd.toPath(), "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\"><xs:element name=\"b\" type=\"xs:int\"/></xs:schema>".getBytes(StandardCharsets.UTF_8));
+        javax.xml.validation.Schema second = SharedGrammarValidatorFactory.getSchema(url);
+        assertNotSame(first, second);
+        assertSame(second, SharedGrammarValidatorFactory.getSchema(url));
+    }
+
+    @Test
+    public void testSchemaPrecompilerNoSchemas() throws IOException {
+        final Path out = Files.createTempDirectory("nifi-daffodil-");
+        out.toFile().deleteOnExit();
+        assertTrue(SchemaPrecompiler.precompile(out.resolve("does-not-exist"), out).isEmpty());
+        // only .dfdl.xsd files directly in the directory are compiled
+        final Path include = Files.createDirectories(out.resolve("include"));
+        Files.copy(Paths.get("src/test/resources/TestDaffodilEngine/csv.dfdl.xsd"), include.resolve("csv.dfdl.xsd"));
+        assertTrue(SchemaPrecompiler.precompile(out, out).isEmpty());
+    }
+}
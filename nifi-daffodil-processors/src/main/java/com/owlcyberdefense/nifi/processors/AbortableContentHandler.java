@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Passes infoset events through to another ContentHandler, keeping track
+ * of which elements are open. Daffodil unparses SAX events as they arrive,
+ * so if whatever creates the events fails part way through, the unparse
+ * would never see the end of the document. In that case abort() closes any
+ * open elements and ends the document so the unparse finishes (with a result
+ * that is discarded) instead of waiting for events that never come.
+ */
+class AbortableContentHandler extends XMLFilterImpl {
+    private final Deque<String[]> openElements = new ArrayDeque<>();
+    private boolean started = false;
+    private boolean ended = false;
+
+    AbortableContentHandler(ContentHandler downstream) {
+        setContentHandler(downstream);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        started = true;
+        super.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        ended = true;
+        super.endDocument();
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        openElements.push(new String[]{uri, localName, qName});
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        openElements.pop();
+        super.endElement(uri, localName, qName);
+    }
+
+    void abort() {
+        if (!started || ended) {
+            return;
+        }
+        try {
+            while (!openElements.isEmpty()) {
+                String[] elem = openElements.peek();
+                endElement(elem[0], elem[1], elem[2]);
+            }
+            endDocument();
+        } catch (SAXException | RuntimeException e) {
+            // expected, the unparse of a partial infoset will almost certainly fail
+        }
+    }
+}
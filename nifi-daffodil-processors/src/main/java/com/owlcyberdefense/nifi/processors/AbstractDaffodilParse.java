@@ -0,0 +1,432 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import com.google.common.io.ByteStreams;
+
+import com.owlcyberdefense.daffodil.engine.DaffodilEngine;
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.ParseResult;
+import org.apache.daffodil.api.infoset.InfosetOutputter;
+
+/**
+ * Parsing with Daffodil, shared by DaffodilParse and DaffodilParseNoPlugins,
+ * which differ only in how NiFi loads their classes. Processor annotations
+ * are on the concrete classes, since @RequiresInstanceClassLoading is
+ * inherited and must not apply to DaffodilParseNoPlugins.
+ */
+public abstract class AbstractDaffodilParse extends AbstractDaffodilProcessor {
+
+    public static final PropertyDescriptor CONTENT_OFFSET = new PropertyDescriptor.Builder()
+            .name("content-offset")
+            .displayName("Content Offset")
+            .description("If set, parse only the content starting at this byte offset in the FlowFile, such as a payload embedded in a container format at an offset recorded in an attribute. The range is read in place, without copying it to a FlowFile of its own. Left over data is checked against the end of the range rather than the end of the FlowFile. If the expression evaluates to an empty string, the range starts at the beginning of the FlowFile.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.createLongValidator(0, Long.MAX_VALUE, true))
+            .build();
+
+    public static final PropertyDescriptor CONTENT_LENGTH = new PropertyDescriptor.Builder()
+            .name("content-length")
+            .displayName("Content Length")
+            .description("If set, parse only this many bytes of content, starting at 'Content Offset'. If the expression evaluates to an empty string, the range ends at the end of the FlowFile. A range that extends past the end of the FlowFile routes the FlowFile to failure.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.createLongValidator(0, Long.MAX_VALUE, true))
+            .build();
+
+    public static final PropertyDescriptor INFOSET_STATISTICS_SAMPLE_INTERVAL = new PropertyDescriptor.Builder()
+            .name("infoset-statistics-sample-interval")
+            .displayName("Infoset Statistics Sample Interval")
+            .description("If set, record statistics for every Nth FlowFile: the number of FlowFiles, the bytes they consumed, the total time to parse them, and the number of occurrences of each element of the DFDL schema. The first sampled FlowFile for each DFDL schema is not recorded. A summary of the totals and the most frequent elements over all sampled FlowFiles is added to each sampled FlowFile as the daffodil.infoset.statistics attribute. Counting elements adds some overhead, so this should only be used while tuning a schema.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RESULT_CACHE_MAX_MEMORY = new PropertyDescriptor.Builder()
+            .name("result-cache-max-memory")
+            .displayName("Result Cache Max Memory")
+            .description("If set, the infosets of successfully parsed FlowFiles no larger than 'Result Cache Max Content Size' are cached, and a FlowFile with exactly the same content, DFDL schema, and variables is given the cached infoset without being parsed again. This helps flows where many FlowFiles are identical, such as heartbeats or status messages. Least recently used results are removed when the total size of cached content and infosets exceeds this value. The 'Result Cache Hits' and 'Result Cache Misses' counters show whether the cache is effective.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RESULT_CACHE_MAX_CONTENT_SIZE = new PropertyDescriptor.Builder()
+            .name("result-cache-max-content-size")
+            .displayName("Result Cache Max Content Size")
+            .description("FlowFiles larger than this are always parsed and their results are not cached. Only used if 'Result Cache Max Memory' is set.")
+            .required(true)
+            .defaultValue("1 KB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PIPELINED_SERIALIZATION_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("pipelined-serialization-threshold")
+            .displayName("Pipelined Serialization Threshold")
+            .description("If set, FlowFiles at least this large are parsed on one thread while a second thread writes the infoset, so that parsing and formatting the infoset run in parallel on two cores. Infoset events are passed between the threads in batches through a bounded queue, so memory use stays bounded. Smaller FlowFiles are parsed on a single thread, since handing events to another thread is not worth it for them. There is at most one writing thread per concurrent task, and large FlowFiles are also parsed on a single thread while all of them are busy. Does not apply when 'XSLT Stylesheet' is set.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final String INFOSET_STATISTICS_ATTRIBUTE = "daffodil.infoset.statistics";
+
+    /**
+     * Maximum number of elements included in the daffodil.infoset.statistics attribute
+     */
+    static final int INFOSET_STATISTICS_REPORT_ELEMENTS = 20;
+
+    private Integer statisticsSampleInterval = null;
+    private final AtomicLong statisticsSampleCount = new AtomicLong();
+
+    /**
+     * Statistics are kept per DFDL schema, since the schema may differ per
+     * FlowFile with expression language
+     */
+    private final ConcurrentHashMap<String, InfosetStatistics> statistics = new ConcurrentHashMap<>();
+
+    private ParseResultCache resultCache = null;
+
+    private Long pipelineThreshold = null;
+    private ExecutorService serializerExecutor = null;
+
+    /**
+     * Buffer owned by a single thread that captures the output of a parse
+     * to be cached, reused so that only the cached copy is allocated
+     */
+    private final ThreadLocal<ByteArrayOutputStream> pooledResultBuffer = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+
+    /**
+     * InfosetOutputters owned by a single thread, one per infoset type, all
+     * writing to the same ReusableOutputStream. Creating an outputter and its
+     * internal writers/buffers for every FlowFile is a significant source of
+     * garbage for small FlowFiles, so instead the stream is rebound to each
+     * FlowFile's OutputStream and the outputter is reset().
+     */
+    private static class PooledOutputters {
+        final ReusableOutputStream stream = new ReusableOutputStream();
+        final Map<String, InfosetOutputter> outputters = new HashMap<>();
+    }
+
+    private final ThreadLocal<PooledOutputters> pooledOutputters = ThreadLocal.withInitial(PooledOutputters::new);
+
+    /**
+     * Number of InfosetOutputters added to the pools of all threads, i.e. the
+     * number of times a thread could not reuse one
+     */
+    private final AtomicLong pooledOutputtersCreated = new AtomicLong();
+
+    static InfosetOutputter getInfosetOutputter(String infosetType, OutputStream os) {
+        switch (infosetType) {
+            case INFOSET_TYPE_XML: return Daffodil.newXMLTextInfosetOutputter(os, false);
+            case INFOSET_TYPE_JSON: return Daffodil.newJsonInfosetOutputter(os, false);
+            case INFOSET_TYPE_CBOR:
+            case INFOSET_TYPE_SMILE: return new BinaryJsonInfoset.Outputter(infosetType, os);
+            default: throw new AssertionError("Unhandled infoset type: " + infosetType);
+        }
+    }
+
+    @Override
+    protected boolean isUnparse() { return false; }
+
+    @Override
+    protected List<PropertyDescriptor> getAdditionalProperties() {
+        return Arrays.asList(CONTENT_OFFSET, CONTENT_LENGTH, INFOSET_STATISTICS_SAMPLE_INTERVAL, RESULT_CACHE_MAX_MEMORY, RESULT_CACHE_MAX_CONTENT_SIZE, PIPELINED_SERIALIZATION_THRESHOLD);
+    }
+
+    @OnScheduled
+    public void resetStatistics(final ProcessContext context) {
+        statisticsSampleInterval = context.getProperty(INFOSET_STATISTICS_SAMPLE_INTERVAL).asInteger();
+        statisticsSampleCount.set(0);
+        statistics.clear();
+    }
+
+    @OnScheduled
+    public void createResultCache(final ProcessContext context) {
+        final Double maxMemory = context.getProperty(RESULT_CACHE_MAX_MEMORY).asDataSize(DataUnit.B);
+        if (maxMemory != null && maxMemory.longValue() > 0) {
+            final long maxContentSize = context.getProperty(RESULT_CACHE_MAX_CONTENT_SIZE).asDataSize(DataUnit.B).longValue();
+            resultCache = new ParseResultCache(maxMemory.longValue(), maxContentSize);
+        } else {
+            resultCache = null;
+        }
+    }
+
+    @Override
+    protected void selectContent(final ProcessContext context, final FlowFile ff, final ProcessingState state) throws DaffodilProcessingException {
+        final String offsetValue = context.getProperty(CONTENT_OFFSET).evaluateAttributeExpressions(ff).getValue();
+        final String lengthValue = context.getProperty(CONTENT_LENGTH).evaluateAttributeExpressions(ff).getValue();
+        final boolean hasOffset = offsetValue != null && !offsetValue.isEmpty();
+        final boolean hasLength = lengthValue != null && !lengthValue.isEmpty();
+        if (!hasOffset && !hasLength) {
+            return;
+        }
+        final long offset;
+        final long length;
+        try {
+            offset = hasOffset ? Long.parseLong(offsetValue.trim()) : 0;
+            length = hasLength ? Long.parseLong(lengthValue.trim()) : ff.getSize() - offset;
+        } catch (NumberFormatException e) {
+            logFailure(state, "'Content Offset' or 'Content Length' is not a number for {}: {}", new Object[]{ff, e.getMessage()});
+            throw new DaffodilProcessingException("Content range is not a number", e);
+        }
+        if (offset < 0 || length < 0 || offset + length > ff.getSize()) {
+            logFailure(state, "Content range of {} bytes at offset {} is outside the {} bytes of {}", new Object[]{length, offset, ff.getSize(), ff});
+            throw new DaffodilProcessingException("Content range is outside the FlowFile");
+        }
+        state.contentOffset = offset;
+        state.contentLength = length;
+    }
+
+    @OnScheduled
+    public void startSerializers(final ProcessContext context) {
+        final Double threshold = context.getProperty(PIPELINED_SERIALIZATION_THRESHOLD).asDataSize(DataUnit.B);
+        if (threshold != null) {
+            final AtomicLong threadCount = new AtomicLong();
+            // At most one serializer per concurrent task. Tasks are handed directly to an idle
+            // thread rather than queued, so when all serializers are busy the executor rejects
+            // the task and the FlowFile is parsed on a single thread instead of waiting
+            serializerExecutor = new ThreadPoolExecutor(0, context.getMaxConcurrentTasks(), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                final Thread thread = new Thread(r, "DaffodilParse infoset serializer " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pipelineThreshold = threshold.longValue();
+        } else {
+            pipelineThreshold = null;
+        }
+    }
+
+    @OnStopped
+    public void stopSerializers() {
+        if (serializerExecutor != null) {
+            serializerExecutor.shutdown();
+            serializerExecutor = null;
+        }
+    }
+
+    ParseResultCache getResultCache() {
+        return resultCache;
+    }
+
+    InfosetStatistics getStatistics(String dfdlSchema) {
+        return statistics.get(dfdlSchema);
+    }
+
+    long getPooledOutputtersCreated() {
+        return pooledOutputtersCreated.get();
+    }
+
+    @Override
+    protected String getOutputMimeType(String infosetType) {
+        return getInfosetMimeType(infosetType);
+    }
+
+    static String getInfosetMimeType(String infosetType) {
+        switch (infosetType) {
+            case INFOSET_TYPE_XML: return XML_MIME_TYPE;
+            case INFOSET_TYPE_JSON: return JSON_MIME_TYPE;
+            case INFOSET_TYPE_CBOR: return CBOR_MIME_TYPE;
+            case INFOSET_TYPE_SMILE: return SMILE_MIME_TYPE;
+            default: throw new AssertionError("Unhandled infoset type: " + infosetType);
+        }
+    }
+
+    @Override
+    protected void processWithDaffodil(final ProcessContext context, final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType, ProcessingState state) throws IOException {
+        final Templates stylesheet = getStylesheet(context, ff);
+
+        // Sampled FlowFiles need their own validation results, so always parse them. Compressed
+        // content is skipped since its size is not known without decompressing it
+        final ParseResultCache cache = resultCache;
+        if (cache != null && !state.sampledValidation && !isInputCompressed() && state.getContentSize(ff) <= cache.getMaxContentSize()) {
+            final byte[] content = ByteStreams.toByteArray(in);
+            final ParseResultCache.Key key = new ParseResultCache.Key(
+                context.getProperty(DFDL_SCHEMA_FILE).evaluateAttributeExpressions(ff).getValue(),
+                context.getProperty(PRE_COMPILED_SCHEMA).evaluateAttributeExpressions(ff).asBoolean(),
+                evaluateVariables(context, ff),
+                infosetType,
+                stylesheet,
+                content);
+            final ParseResultCache.Entry cached = cache.get(key);
+            if (cached != null) {
+                out.write(cached.output);
+                out.flush();
+                state.remainderOffset = cached.remainderOffset;
+                state.outputMimeType = cached.outputMimeType;
+                state.resultCacheHit = true;
+                return;
+            }
+
+            final ByteArrayOutputStream buffer = pooledResultBuffer.get();
+            buffer.reset();
+            parse(context, dp, ff, new ByteArrayInputStream(content), buffer, infosetType, stylesheet, state);
+            buffer.writeTo(out);
+            out.flush();
+            // results with attributes, e.g. infoset statistics, are specific to this FlowFile
+            if (state.getAttributes().isEmpty()) {
+                cache.put(key, new ParseResultCache.Entry(buffer.toByteArray(), state.remainderOffset, state.outputMimeType));
+            }
+            state.resultCacheHit = false;
+            return;
+        }
+
+        parse(context, dp, ff, in, out, infosetType, stylesheet, state);
+    }
+
+    private void parse(final ProcessContext context, final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType, final Templates stylesheet, ProcessingState state) throws IOException {
+        if (stylesheet != null) {
+            parseWithStylesheet(dp, ff, in, out, stylesheet, state);
+            return;
+        }
+
+        final PooledOutputters pooled = pooledOutputters.get();
+        final ReusableOutputStream os = pooled.stream;
+        InfosetOutputter outputter = pooled.outputters.get(infosetType);
+        if (outputter == null) {
+            outputter = getInfosetOutputter(infosetType, os);
+            pooled.outputters.put(infosetType, outputter);
+            pooledOutputtersCreated.incrementAndGet();
+        }
+        outputter.reset();
+        os.bind(out);
+
+        // Sampled FlowFiles wrap the pooled outputter, so the pool itself never has counting overhead
+        InfosetStatistics sampled = null;
+        InfosetOutputter parseOutputter = outputter;
+        if (statisticsSampleInterval != null && statisticsSampleCount.getAndIncrement() % statisticsSampleInterval == 0) {
+            final String dfdlSchema = context.getProperty(DFDL_SCHEMA_FILE).evaluateAttributeExpressions(ff).getValue();
+            final InfosetStatistics schemaStatistics = statistics.computeIfAbsent(dfdlSchema, k -> new InfosetStatistics());
+            if (schemaStatistics.warmedUp()) {
+                sampled = schemaStatistics;
+                parseOutputter = new InfosetStatistics.CountingOutputter(outputter, sampled);
+            }
+        }
+
+        // Counting stays on the parse thread, outside the pipeline
+        PipelinedOutputter pipelined = null;
+        if (pipelineThreshold != null && state.getContentSize(ff) >= pipelineThreshold) {
+            try {
+                pipelined = new PipelinedOutputter(outputter, serializerExecutor);
+                parseOutputter = sampled != null ? new InfosetStatistics.CountingOutputter(pipelined, sampled) : pipelined;
+            } catch (RejectedExecutionException e) {
+                // every serializer thread is busy, so this FlowFile is parsed and written on this thread
+            }
+        }
+
+        boolean success = false;
+        try {
+            final InputStream parseIn = getParseInputStream(in);
+            final long start = System.nanoTime();
+            ParseResult pr = getEngine().parse(dp, parseIn, parseOutputter);
+            final long elapsed = System.nanoTime() - start;
+            if (pipelined != null) {
+                if (pr.isProcessingError()) {
+                    pipelined.abort();
+                } else {
+                    pipelined.finish();
+                }
+                pipelined = null;
+            }
+            checkParseResult(ff, pr, state);
+            checkLeftOverData(ff, parseIn, pr, state);
+            if (sampled != null) {
+                sampled.addFlowFile(DaffodilEngine.getBitsConsumed(pr) / 8, elapsed);
+                state.putAttribute(INFOSET_STATISTICS_ATTRIBUTE, sampled.report(INFOSET_STATISTICS_REPORT_ELEMENTS));
+            }
+            os.unbind();
+            success = true;
+        } finally {
+            if (pipelined != null) {
+                pipelined.abort();
+            }
+            if (!success) {
+                // A failed parse can leave partially written state (e.g. buffered
+                // characters or open elements) inside the outputter, so it must
+                // not be reused for the next FlowFile
+                pooled.outputters.remove(infosetType);
+                os.discard();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Parse with Daffodil's SAX API, passing the infoset events directly to
+     * the stylesheet so the infoset is never written as XML text only to be
+     * parsed again by the transform
+     */
+    private void parseWithStylesheet(final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, final Templates stylesheet, final ProcessingState state) throws IOException {
+        final TransformerHandler handler;
+        try {
+            handler = newTransformerFactory().newTransformerHandler(stylesheet);
+        } catch (TransformerException e) {
+            throw new DaffodilProcessingException("Failed to create XSLT transformer", e);
+        }
+        handler.setResult(new StreamResult(out));
+
+        final InputStream parseIn = getParseInputStream(in);
+        final ParseResult pr;
+        try {
+            pr = getEngine().parse(dp, parseIn, handler);
+        } catch (Exception e) {
+            // transform errors surface as SAXExceptions thrown from the content handler
+            logFailure(state, "Failed to transform {}: {}", new Object[]{ff, e.getMessage()});
+            throw new DaffodilProcessingException("Failed to transform", e);
+        }
+        checkParseResult(ff, pr, state);
+        checkLeftOverData(ff, parseIn, pr, state);
+        state.outputMimeType = getStylesheetMimeType(stylesheet);
+        out.flush();
+    }
+
+}
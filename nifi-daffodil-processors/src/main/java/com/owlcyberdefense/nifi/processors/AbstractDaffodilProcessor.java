@@ -21,27 +21,45 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.stream.StreamSource;
 
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.PropertyValue;
 import org.apache.nifi.components.resource.ResourceCardinality;
 import org.apache.nifi.components.resource.ResourceType;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
@@ -54,28 +72,38 @@ import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.NonCloseableInputStream;
+import org.apache.nifi.stream.io.NonCloseableOutputStream;
 import org.apache.nifi.util.StopWatch;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
-import org.apache.daffodil.api.Compiler;
-import org.apache.daffodil.api.Daffodil;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import com.owlcyberdefense.daffodil.engine.CompilationParams;
+import com.owlcyberdefense.daffodil.engine.DaffodilCompileException;
+import com.owlcyberdefense.daffodil.engine.DaffodilEngine;
+import com.owlcyberdefense.daffodil.engine.SchemaCache;
+import com.owlcyberdefense.daffodil.engine.SharedGrammarValidatorFactory;
 import org.apache.daffodil.api.DataProcessor;
 import org.apache.daffodil.api.Diagnostic;
-import org.apache.daffodil.api.ProcessorFactory;
+import org.apache.daffodil.api.ParseResult;
 import org.apache.daffodil.api.WithDiagnostics;
 import org.apache.daffodil.api.exceptions.ExternalVariableException;
-import org.apache.daffodil.api.exceptions.InvalidParserException;
-import org.apache.daffodil.api.validation.ValidatorInitializationException;
-import org.apache.daffodil.api.validation.ValidatorNotRegisteredException;
 
 
 public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
 
-    abstract protected void processWithDaffodil(final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType) throws IOException;
+    abstract protected void processWithDaffodil(final ProcessContext context, final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType, ProcessingState state) throws IOException;
 
     /**
      * Returns the mime type of the resulting output FlowFile. If the mime type
@@ -85,6 +113,29 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
     abstract protected String getOutputMimeType(String infosetType);
     abstract protected boolean isUnparse();
 
+    /**
+     * Returns true if this processor reads or writes an infoset and so supports
+     * the 'Infoset Type' property. If false, the infosetType passed to
+     * processWithDaffodil and getOutputMimeType is null.
+     */
+    protected boolean hasInfosetType() { return true; }
+
+    /**
+     * Returns true if this processor supports the 'Plugins and Schemas'
+     * property. That property adds to the classpath, which NiFi only allows
+     * for processors with @RequiresInstanceClassLoading, so processors that
+     * share the NAR class loader must return false.
+     */
+    protected boolean supportsPlugins() { return true; }
+
+    /**
+     * Returns true if this processor processes incoming FlowFiles. Source
+     * processors return false, and do not support the properties that only
+     * apply to the content or attributes of an incoming FlowFile, such as
+     * 'Input Compression', 'Left Over Data', and 'XSLT Stylesheet'.
+     */
+    protected boolean hasInputFlowFiles() { return true; }
+
     public static final PropertyDescriptor DFDL_SCHEMA_FILE = new PropertyDescriptor.Builder()
             .name("dfdl-schema-file")
             .displayName("DFDL Schema File")
@@ -116,9 +167,13 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
 
     static final String XML_MIME_TYPE = "application/xml";
     static final String JSON_MIME_TYPE = "application/json";
+    static final String CBOR_MIME_TYPE = "application/cbor";
+    static final String SMILE_MIME_TYPE = "application/x-jackson-smile";
 
     static final String INFOSET_TYPE_XML = "xml";
     static final String INFOSET_TYPE_JSON = "json";
+    static final String INFOSET_TYPE_CBOR = "cbor";
+    static final String INFOSET_TYPE_SMILE = "smile";
     static final String INFOSET_TYPE_ATTRIBUTE = "use mime.type attribute";
 
     public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor.Builder()
@@ -139,6 +194,14 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor CACHE_MAX_MEMORY = new PropertyDescriptor.Builder()
+            .name("cache-max-memory")
+            .displayName("Cache Max Memory")
+            .description("Maximum estimated memory of compiled DFDL schemas to cache, where the size of each compiled schema is estimated by the size of its saved parser. If set, this is used instead of 'Cache Size' to limit the cache, and least recently used compiled schemas are removed until the total is below this value. A value of '0 B' disables the cache.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
     static final String VALIDATION_MODE_OFF = "off";
     static final String VALIDATION_MODE_LIMITED = "limited";
     static final String VALIDATION_MODE_FULL = "full";
@@ -152,13 +215,153 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
             .allowableValues(VALIDATION_MODE_OFF, VALIDATION_MODE_LIMITED, VALIDATION_MODE_FULL)
             .build();
 
+    static final String COMPRESSION_NONE = "none";
+    static final String COMPRESSION_GZIP = "gzip";
+    static final String COMPRESSION_ZSTD = "zstd";
+
+    static final String GZIP_MIME_TYPE = "application/gzip";
+    static final String ZSTD_MIME_TYPE = "application/zstd";
+
+    public static final PropertyDescriptor INPUT_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("input-compression")
+            .displayName("Input Compression")
+            .description("The compression format of the incoming FlowFile content. Content is decompressed as it is read, without writing the decompressed data back to the content repository.")
+            .required(true)
+            .defaultValue(COMPRESSION_NONE)
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_GZIP, COMPRESSION_ZSTD)
+            .build();
+
+    public static final PropertyDescriptor OUTPUT_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("output-compression")
+            .displayName("Output Compression")
+            .description("The compression format to apply to the resulting FlowFile content. Content is compressed as it is written. If not 'none', the mime.type attribute is set to that of the compression format.")
+            .required(true)
+            .defaultValue(COMPRESSION_NONE)
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_GZIP, COMPRESSION_ZSTD)
+            .build();
+
+    public static final PropertyDescriptor VALIDATION_SAMPLE_PERCENTAGE = new PropertyDescriptor.Builder()
+            .name("validation-sample-percentage")
+            .displayName("Full Validation Sample Percentage")
+            .description("If 'Validation Mode' is 'off' or 'limited', the percentage of randomly selected FlowFiles to parse with full validation instead. Validation errors found only because a FlowFile was sampled do not route it to failure, but are recorded in attributes and counters. Cannot be used with 'Full Validation Sample Interval'.")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .build();
+
+    public static final PropertyDescriptor VALIDATION_SAMPLE_INTERVAL = new PropertyDescriptor.Builder()
+            .name("validation-sample-interval")
+            .displayName("Full Validation Sample Interval")
+            .description("If 'Validation Mode' is 'off' or 'limited', parse every Nth FlowFile for each DFDL schema with full validation instead. Validation errors found only because a FlowFile was sampled do not route it to failure, but are recorded in attributes and counters. Cannot be used with 'Full Validation Sample Percentage'.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /**
+     * Validates that a value is a list of name=value pairs that can be parsed by
+     * parseTunables(). Whether Daffodil knows about each tunable is not checked
+     * until the schema is compiled.
+     */
+    static final Validator TUNABLES_VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(String subject, String input, ValidationContext context) {
+            String explanation = null;
+            try {
+                parseTunables(input);
+            } catch (IllegalArgumentException e) {
+                explanation = e.getMessage();
+            }
+            return new ValidationResult.Builder()
+                .subject(subject)
+                .input(input)
+                .valid(explanation == null)
+                .explanation(explanation)
+                .build();
+        }
+    };
+
+    public static final PropertyDescriptor TUNABLES = new PropertyDescriptor.Builder()
+            .name("tunables")
+            .displayName("Daffodil Tunables")
+            .description("Comma or newline separated list of name=value pairs of Daffodil tunables (e.g. maxOccursBounds=4096) used when compiling or reloading the DFDL schema and when parsing/unparsing. Schemas compiled with different tunables are cached separately.")
+            .required(false)
+            .addValidator(TUNABLES_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DIAGNOSTICS_LOG_INTERVAL = new PropertyDescriptor.Builder()
+            .name("diagnostics-log-interval")
+            .displayName("Diagnostics Log Interval")
+            .description("How often to log failures and Daffodil diagnostics. If '0 seconds', each failure and diagnostic is logged as it occurs. Otherwise, they are counted by DFDL schema and message, and a summary line with the count of each message is logged once per interval. This limits the cost of logging, and the number of bulletins, when a large number of FlowFiles fail.")
+            .required(true)
+            .defaultValue("0 seconds")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DIAGNOSTICS_ATTRIBUTE_MAX_LENGTH = new PropertyDescriptor.Builder()
+            .name("diagnostics-attribute-max-length")
+            .displayName("Diagnostics Attribute Max Length")
+            .description("Maximum number of characters of Daffodil diagnostics to add to a FlowFile routed to failure as the daffodil.diagnostics attribute. Diagnostics beyond this length are not included. Set to 0 to not add the attribute.")
+            .required(true)
+            .defaultValue("4096")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LARGE_FLOWFILE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("large-flowfile-threshold")
+            .displayName("Large FlowFile Threshold")
+            .description("If set, FlowFiles of at least this size are only processed by up to 'Large FlowFile Max Concurrent Tasks' concurrent tasks at a time, and the other concurrent tasks only take smaller FlowFiles from the queue, skipping over large ones. This keeps small FlowFiles from waiting behind large FlowFiles that take a long time to process. The size is of the FlowFile content, which is the compressed size if 'Input Compression' is set.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LARGE_FLOWFILE_MAX_CONCURRENT_TASKS = new PropertyDescriptor.Builder()
+            .name("large-flowfile-max-concurrent-tasks")
+            .displayName("Large FlowFile Max Concurrent Tasks")
+            .description("The maximum number of concurrent tasks that may process FlowFiles of at least 'Large FlowFile Threshold' at the same time. This should be less than the processor's Concurrent Tasks, so that some tasks are always available for small FlowFiles. Only used if 'Large FlowFile Threshold' is set.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor XSLT_STYLESHEET = new PropertyDescriptor.Builder()
+            .name("xslt-stylesheet")
+            .displayName("XSLT Stylesheet")
+            .description("Optional path to an XSLT stylesheet file or resource (see 'Plugins and Schemas'). When parsing, the stylesheet is applied to the infoset events as they are created and the FlowFile content is the result of the transform instead of the infoset. When unparsing, the stylesheet is applied to the incoming XML and the events it creates are unparsed. The intermediate infoset is never written as text. Requires the XML infoset type. Compiled stylesheets are cached until the processor is stopped.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    /**
+     * Maximum number of compiled stylesheets to cache
+     */
+    static final int STYLESHEET_CACHE_SIZE = 50;
+
+    static final String LEFT_OVER_DATA_FAIL = "fail";
+    static final String LEFT_OVER_DATA_REMAINDER = "route to remainder";
+
+    public static final PropertyDescriptor LEFT_OVER_DATA = new PropertyDescriptor.Builder()
+            .name("left-over-data")
+            .displayName("Left Over Data")
+            .description("What to do if parsing succeeds without consuming all of the data. If 'fail', the FlowFile is routed to failure. If 'route to remainder', the infoset of the parsed data is routed to success and the unconsumed data is routed to the remainder relationship as a new FlowFile that references the original content without copying it. Left over data that does not start on a byte boundary, or that is found when 'Input Compression' is not 'none', always fails.")
+            .required(true)
+            .defaultValue(LEFT_OVER_DATA_FAIL)
+            .allowableValues(LEFT_OVER_DATA_FAIL, LEFT_OVER_DATA_REMAINDER)
+            .build();
+
+    static final String REMAINDER_OFFSET_ATTRIBUTE = "daffodil.remainder.offset";
+
+    static final String VALIDATION_MODE_ATTRIBUTE = "daffodil.validation.mode";
+    static final String VALIDATION_VALID_ATTRIBUTE = "daffodil.validation.valid";
+    static final String VALIDATION_ERRORS_ATTRIBUTE = "daffodil.validation.errors";
+    static final String DIAGNOSTICS_ATTRIBUTE = "daffodil.diagnostics";
+
     /**
      * This is not static like the other PropertyDescriptors. This is because
      * the allowable values differ based on whether this is parse or unparse
      * (mime.type attribute is not allow for parse). So on init() we will
      * create this property descriptor accordingly.
      */
-    private PropertyDescriptor INFOSET_TYPE = null;
+    PropertyDescriptor INFOSET_TYPE = null;
 
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
@@ -171,9 +374,14 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
             .description("When a parse/unparse fails, it will be routed to this relationship")
             .build();
 
+    public static final Relationship REL_REMAINDER = new Relationship.Builder()
+            .name("remainder")
+            .description("When 'Left Over Data' is 'route to remainder', the data not consumed by a successful parse is routed to this relationship")
+            .build();
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
-        Set<String> allowableInfosetTypeValues = new HashSet(Arrays.asList(INFOSET_TYPE_XML, INFOSET_TYPE_JSON));
+        Set<String> allowableInfosetTypeValues = new HashSet(Arrays.asList(INFOSET_TYPE_XML, INFOSET_TYPE_JSON, INFOSET_TYPE_CBOR, INFOSET_TYPE_SMILE));
         if (isUnparse()) {
             // using the mime type for infoset type only applies to unparse
             allowableInfosetTypeValues.add(INFOSET_TYPE_ATTRIBUTE);
@@ -182,7 +390,7 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
         INFOSET_TYPE = new PropertyDescriptor.Builder()
             .name("infoset-type")
             .displayName("Infoset Type")
-            .description("The format of the FlowFile to output (for parsing) or input (for unparsing).")
+            .description("The format of the FlowFile to output (for parsing) or input (for unparsing). 'cbor' and 'smile' are binary encodings of the same structure as 'json', which are smaller and faster to write when parsing. Unparsing them is slower than unparsing 'json', since they are transcoded to JSON text for Daffodil.")
             .required(true)
             .defaultValue(INFOSET_TYPE_XML)
             .allowableValues(allowableInfosetTypeValues)
@@ -191,170 +399,589 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(DFDL_SCHEMA_FILE);
         properties.add(PRE_COMPILED_SCHEMA);
-        properties.add(INFOSET_TYPE);
+        properties.addAll(getAdditionalSchemaProperties());
+        if (hasInfosetType()) {
+            properties.add(INFOSET_TYPE);
+            if (hasInputFlowFiles()) {
+                properties.add(XSLT_STYLESHEET);
+            }
+        }
         properties.add(VALIDATION_MODE);
+        if (!isUnparse() && hasInputFlowFiles()) {
+            // unparse ignores validation, so sampling does not apply
+            properties.add(VALIDATION_SAMPLE_PERCENTAGE);
+            properties.add(VALIDATION_SAMPLE_INTERVAL);
+            properties.add(LEFT_OVER_DATA);
+        }
+        if (hasInputFlowFiles()) {
+            properties.add(INPUT_COMPRESSION);
+        }
+        properties.add(OUTPUT_COMPRESSION);
+        properties.add(TUNABLES);
+        properties.add(DIAGNOSTICS_LOG_INTERVAL);
+        properties.add(DIAGNOSTICS_ATTRIBUTE_MAX_LENGTH);
+        if (hasInputFlowFiles()) {
+            properties.add(LARGE_FLOWFILE_THRESHOLD);
+            properties.add(LARGE_FLOWFILE_MAX_CONCURRENT_TASKS);
+        }
         properties.add(CACHE_SIZE);
+        properties.add(CACHE_MAX_MEMORY);
         properties.add(CACHE_TTL_AFTER_LAST_ACCESS);
-        properties.add(PLUGINS_AND_SCHEMAS);
+        properties.addAll(getAdditionalProperties());
+        if (supportsPlugins()) {
+            properties.add(PLUGINS_AND_SCHEMAS);
+        }
         this.properties = Collections.unmodifiableList(properties);
 
-        final Set<Relationship> relationships = new HashSet<>();
-        relationships.add(REL_SUCCESS);
-        relationships.add(REL_FAILURE);
-        this.relationships = Collections.unmodifiableSet(relationships);
+        this.relationships = getRelationships(false);
     }
 
+    /**
+     * Properties specific to a subclass, listed directly after the 'DFDL Schema File'
+     * and 'Pre-compiled Schema' properties
+     */
+    protected List<PropertyDescriptor> getAdditionalSchemaProperties() { return Collections.emptyList(); }
+
+    /**
+     * Properties specific to a subclass, listed directly before the 'Plugins and Schemas'
+     * property
+     */
+    protected List<PropertyDescriptor> getAdditionalProperties() { return Collections.emptyList(); }
+
     private List<PropertyDescriptor> properties;
-    private Set<Relationship> relationships;
-    private LoadingCache<CompilationParams, DataProcessor> cache;
+    private volatile Set<Relationship> relationships;
+
+    /**
+     * Compiles and caches DataProcessors, created in onScheduled according to
+     * the cache properties
+     */
+    private volatile DaffodilEngine engine;
+    private String inputCompression = COMPRESSION_NONE;
+    private Integer validationSamplePercentage = null;
+    private Integer validationSampleInterval = null;
+
+    /**
+     * Number of FlowFiles processed for each DFDL schema, used to select every
+     * Nth FlowFile for full validation when 'Full Validation Sample Interval' is set
+     */
+    private final ConcurrentHashMap<String, AtomicLong> validationSampleCounts = new ConcurrentHashMap<>();
+    private String outputCompression = COMPRESSION_NONE;
+    private Map<String, String> tunables = Collections.emptyMap();
+
+    /**
+     * Configuration that cannot change per FlowFile, resolved once in onScheduled
+     */
+    private String infosetTypeValue = null;
+    private String validationMode = null;
+    private boolean routeRemainder = false;
+    private boolean stylesheetSet = false;
+    private int diagnosticsMaxLength = 0;
+
+    /**
+     * Aggregates failures and diagnostics when 'Diagnostics Log Interval' is
+     * set, otherwise null and they are logged as they occur
+     */
+    private volatile DiagnosticSummary diagnosticSummary = null;
+
+    /**
+     * Logs the diagnostic summary when it is due even if no new failures or
+     * diagnostics arrive, null if diagnostics are not summarized
+     */
+    private ScheduledExecutorService diagnosticSummaryTimer = null;
+
+    /**
+     * If 'Large FlowFile Threshold' is set, the threshold in bytes and a
+     * filter that only accepts smaller FlowFiles, otherwise null
+     */
+    private Long largeFlowFileThreshold = null;
+    private FlowFileFilter smallFlowFileFilter = null;
+    private int largeFlowFileMaxTasks = 1;
+
+    /**
+     * Number of concurrent tasks currently allowed to take large FlowFiles
+     */
+    private final AtomicInteger largeFlowFileTasks = new AtomicInteger();
+    private List<PropertyDescriptor> dynamicProperties = Collections.emptyList();
+    private LoadingCache<String, Templates> stylesheetCache;
+
+    /**
+     * If the DFDL schema and all variables are the same for every FlowFile,
+     * the parameters and DataProcessor (with variables applied) used for every
+     * FlowFile not selected for sampled validation, otherwise null
+     */
+    private CompilationParams staticParams = null;
+    private DataProcessor staticDataProcessor = null;
 
     /**
-     * Stores all parameters needed to create a DataProcessor
-     *
-     * DataProcessors compiled with these parameters are stored in a Cache using the associated
-     * CompilationParams as a key. Any values needed to configure DataProcessor creation or
-     * modification should be added as constructor parameters and hashCode() and equals()
-     * functions updated accordingly. This ensures value equality checks are performed correctly
-     * in the Cache lookup.
+     * Per-FlowFile state passed to processWithDaffodil. Describes how the
+     * FlowFile should be processed, and collects attributes to add to the
+     * resulting FlowFile.
      */
-    static class CompilationParams {
-        public String dfdlSchema;
-        public Boolean preCompiled;
-        public String validationMode;
+    static class ProcessingState {
+        /**
+         * True if the FlowFile was selected for sampled full validation, in
+         * which case validation errors are recorded instead of causing failure
+         */
+        final boolean sampledValidation;
+
+        /**
+         * True if left over data may be routed to the remainder relationship
+         * instead of causing failure
+         */
+        final boolean remainderAllowed;
+
+        /**
+         * The DFDL schema used for this FlowFile, used to group diagnostics
+         */
+        final String dfdlSchema;
+
+        /**
+         * Byte offset in the FlowFile of the content to process, see
+         * selectContent
+         */
+        long contentOffset = 0;
 
-        public CompilationParams(
-            String dfdlSchema,
-            Boolean preCompiled,
-            String validationMode) {
+        /**
+         * Number of bytes of content to process starting at contentOffset, or
+         * -1 to process the whole FlowFile
+         */
+        long contentLength = -1;
+
+        /**
+         * Byte offset in the processed content of left over data to route to
+         * the remainder relationship, or -1 if there is none
+         */
+        long remainderOffset = -1;
+
+        /**
+         * The mime type of the output if it is not determined by the infoset
+         * type, such as the output method of an XSLT stylesheet
+         */
+        String outputMimeType = null;
+
+        /**
+         * True if the output came from the parse result cache, false if the
+         * result was looked up but not found, or null if it was not looked up
+         */
+        Boolean resultCacheHit = null;
 
+        /**
+         * Diagnostics of a failure, up to 'Diagnostics Attribute Max Length'
+         */
+        StringBuilder diagnostics = null;
+
+        private Map<String, String> attributes = null;
+
+        ProcessingState(String dfdlSchema, boolean sampledValidation, boolean remainderAllowed) {
             this.dfdlSchema = dfdlSchema;
-            this.preCompiled = preCompiled;
-            this.validationMode = validationMode;
+            this.sampledValidation = sampledValidation;
+            this.remainderAllowed = remainderAllowed;
         }
 
-        public int hashCode() {
-          return Objects.hash(dfdlSchema, preCompiled, validationMode);
+        void putAttribute(String name, String value) {
+            if (attributes == null) {
+                attributes = new HashMap<>();
+            }
+            attributes.put(name, value);
         }
 
-        public boolean equals(Object obj) {
-          if (!(obj instanceof CompilationParams)) return false;
-          if (obj == this) return true;
-
-          CompilationParams that = (CompilationParams)obj;
-          return Objects.equals(this.dfdlSchema, that.dfdlSchema) &&
-                 Objects.equals(this.preCompiled, that.preCompiled) &&
-                 Objects.equals(this.validationMode, that.validationMode);
+        Map<String, String> getAttributes() {
+            return attributes == null ? Collections.<String, String>emptyMap() : attributes;
         }
 
         /**
-         * Creates a DataProcessor using only state in the compilation parameters
-         *
-         * This function must create and modify a DataProcessor using the provided parameters.
-         * The resulting DataProcessor will be added to a Cache so that this function does not
-         * need to be called again for the same set of parameters. This avoids compiling the
-         * same schema multiple times.
-         *
-         * Note that changes to the DataProcessor (e.g. calls to with*() functions) should not
-         * happen outside of this function, as those changes will not be cached and will need to
-         * be done for every flow file, which could have performance implications.
+         * The size of the content that is processed, which is less than the
+         * size of the FlowFile if only a range of it is selected
          */
-        DataProcessor newDataProcessor(ComponentLog logger) throws DaffodilCompileException {
-
-            // Try to find the schema to compile or reload. If dfdlSchema is a file that exists,
-            // we just use that. If dfdlSchema is not a file, try to find it on the classpath,
-            // most likely in a jar or file found in the 'Plugins and Schemas' property. If the
-            // schema is in a jar, this should be an absolute resource path (i.e. has a leading
-            // slash). If the schema is not in a jar, then it should just be the file name
-            // without a preceding slash. The latter works because of NiFis InstanceClassLoader,
-            // which makes non-jar files available via getResource by just the file name.
-            URL schemaURL = null;
-            File f = new File(this.dfdlSchema);
-            if (f.isFile()) {
-                try {
-                    schemaURL = f.toURI().toURL();
-                } catch (MalformedURLException e) {
-                    throw new DaffodilCompileException("Invalid 'DFDL Schema File' property: " + e);
-                }
-            } else {
-                // it is important to use getClassLoader.getResource() here. If we just do
-                // getClass.getResource() then Java will prepend the classes package to
-                // dfdlSchema values that are not absolute, which breaks the ability for the
-                // InstanceClassLoader to find non-jar resources
-                schemaURL = getClass().getClassLoader().getResource(this.dfdlSchema);
-            }
-
-            if (schemaURL == null) {
-                logger.error("Failed to find 'DFDL Schema File' property as a file or from 'Plugins and Schemas': " + this.dfdlSchema);
-                throw new DaffodilCompileException("Failed to find 'DFDL Schema File' property as a file or in 'Plugins and Schemas': " + this.dfdlSchema);
-            }
-
-            Compiler c = Daffodil.compiler();
-            DataProcessor dp;
-            if (this.preCompiled) {
-                try {
-                    InputStream is = schemaURL.openStream();
-                    ReadableByteChannel rbc = Channels.newChannel(is);
-                    dp = c.reload(rbc);
-                    rbc.close();
-                    is.close();
-                } catch (InvalidParserException|IOException e) {
-                    logger.error("Failed to reload pre-compiled DFDL schema: " + this.dfdlSchema + ". " + e.getMessage());
-                    throw new DaffodilCompileException("Failed to reload pre-compiled DFDL schema: " + this.dfdlSchema + ". " + e.getMessage());
+        long getContentSize(FlowFile ff) {
+            return contentLength >= 0 ? contentLength : ff.getSize();
+        }
+    }
+
+    /**
+     * Returns the DataProcessor used for every FlowFile when the configuration
+     * does not depend on the FlowFile, or null
+     */
+    DataProcessor getStaticDataProcessor() {
+        return staticDataProcessor;
+    }
+
+    /**
+     * Returns the total estimated size in bytes of all cached DataProcessors, or
+     * zero if the cache is not limited by 'Cache Max Memory'
+     */
+    long getCacheWeight() {
+        return engine.getCacheWeight();
+    }
+
+    /**
+     * The engine that compiles, caches, and runs DataProcessors, replaced each
+     * time the processor is scheduled
+     */
+    DaffodilEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the DataProcessor for the parameters from the engine, logging
+     * the reason and any Daffodil diagnostics if the schema could not be
+     * compiled
+     */
+    protected DataProcessor getDataProcessor(CompilationParams params) throws DaffodilCompileException {
+        try {
+            return engine.getDataProcessor(params);
+        } catch (DaffodilCompileException e) {
+            final ComponentLog logger = getLogger();
+            logger.error(e.getMessage());
+            logDiagnostics(logger, e.getDiagnostics());
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if this FlowFile should be parsed with full validation
+     * because of 'Full Validation Sample Percentage' or 'Full Validation Sample
+     * Interval'
+     */
+    private boolean isValidationSampled(String dfdlSchema) {
+        if (validationSamplePercentage != null) {
+            return ThreadLocalRandom.current().nextInt(100) < validationSamplePercentage;
+        }
+        if (validationSampleInterval != null) {
+            final AtomicLong count = validationSampleCounts.computeIfAbsent(dfdlSchema, k -> new AtomicLong());
+            return count.getAndIncrement() % validationSampleInterval == 0;
+        }
+        return false;
+    }
+
+    /**
+     * Throws a DaffodilProcessingException if a parse failed. If the FlowFile
+     * was selected for sampled full validation and the parse only failed due
+     * to validation errors, the errors are instead logged as warnings and
+     * recorded in attributes so that processing can continue.
+     */
+    protected void checkParseResult(FlowFile ff, ParseResult pr, ProcessingState state) throws DaffodilProcessingException {
+        if (state.sampledValidation && !pr.isProcessingError()) {
+            int errors = 0;
+            for (Diagnostic diag : pr.getDiagnostics()) {
+                if (diag.isError()) {
+                    errors++;
                 }
-            } else {
-                try {
-                    ProcessorFactory pf = c.compileSource(schemaURL.toURI());
-                    if (pf.isError()) {
-                        logger.error("Failed to compile DFDL schema: " + this.dfdlSchema);
-                        AbstractDaffodilProcessor.logDiagnostics(logger, pf);
-                        throw new DaffodilCompileException("Failed to compile DFDL schema: " + this.dfdlSchema);
-                    }
-                    dp = pf.onPath("/");
-                    if (dp.isError()) {
-                        logger.error("Failed to compile DFDL schema: " + this.dfdlSchema);
-                        AbstractDaffodilProcessor.logDiagnostics(logger, dp);
-                        throw new DaffodilCompileException("Failed to compile DFDL schema: " + this.dfdlSchema);
-                    }
-                } catch (URISyntaxException e) {
-                    throw new AssertionError("invalid URI should no be possible: " + e);
+            }
+            if (pr.isValidationError()) {
+                log(state, false, "Sampled full validation found {} validation error(s) when parsing {}", new Object[]{errors, ff});
+                for (Diagnostic diag : pr.getDiagnostics()) {
+                    logDiagnostic(state, false, diag);
                 }
             }
-            try {
-                dp = dp.withValidation(this.validationMode, new File(this.dfdlSchema).toURI().toURL());
-            } catch (MalformedURLException e) {
-                throw new AssertionError("could not convert schema to valid URL: " + e);
-            } catch (ValidatorNotRegisteredException e) {
-                throw new AssertionError("validator does not exist: " + e);
-            } catch (ValidatorInitializationException e) {
-                logger.error("Failed to initialize validator: " + this.dfdlSchema + ". " + e.getMessage());
-                throw new DaffodilCompileException("Failed to initialize validator: " + this.dfdlSchema + ". " + e.getMessage());
+            state.putAttribute(VALIDATION_MODE_ATTRIBUTE, VALIDATION_MODE_FULL);
+            state.putAttribute(VALIDATION_VALID_ATTRIBUTE, String.valueOf(!pr.isValidationError()));
+            state.putAttribute(VALIDATION_ERRORS_ATTRIBUTE, String.valueOf(errors));
+            return;
+        }
+        if (pr.isError()) {
+            logFailure(state, "Failed to parse {}", new Object[]{ff});
+            reportDiagnostics(state, pr);
+            throw new DaffodilProcessingException("Failed to parse");
+        }
+    }
+
+    /**
+     * Log a failure to process a FlowFile, or count it towards the next
+     * summary if 'Diagnostics Log Interval' is set
+     */
+    protected void logFailure(ProcessingState state, String format, Object... args) {
+        log(state, true, format, args);
+    }
+
+    private void log(ProcessingState state, boolean error, String format, Object... args) {
+        final DiagnosticSummary summary = diagnosticSummary;
+        if (summary != null) {
+            summary.add(state.dfdlSchema, error, toTemplate(format, args), getLogger());
+        } else if (error) {
+            getLogger().error(format, args);
+        } else {
+            getLogger().warn(format, args);
+        }
+    }
+
+    private void logDiagnostic(ProcessingState state, boolean error, Diagnostic diag) {
+        final DiagnosticSummary summary = diagnosticSummary;
+        if (summary != null) {
+            summary.add(state.dfdlSchema, error, toTemplate(diag), getLogger());
+            return;
+        }
+        final String message = diag.toString();
+        if (error) {
+            getLogger().error(message);
+        } else {
+            getLogger().warn(message);
+        }
+    }
+
+    /**
+     * Log the diagnostics of a failed parse or unparse, or count them towards
+     * the next summary if 'Diagnostics Log Interval' is set. They are also
+     * recorded in the state, up to 'Diagnostics Attribute Max Length', to be
+     * added to the FlowFile routed to failure.
+     */
+    protected void reportDiagnostics(ProcessingState state, WithDiagnostics withDiags) {
+        for (Diagnostic diag : withDiags.getDiagnostics()) {
+            logDiagnostic(state, diag.isError(), diag);
+            if (diagnosticsMaxLength > 0 && (state.diagnostics == null || state.diagnostics.length() < diagnosticsMaxLength)) {
+                if (state.diagnostics == null) {
+                    state.diagnostics = new StringBuilder();
+                } else {
+                    state.diagnostics.append('\n');
+                }
+                state.diagnostics.append(diag.toString());
+                if (state.diagnostics.length() > diagnosticsMaxLength) {
+                    state.diagnostics.setLength(diagnosticsMaxLength);
+                }
             }
-            return dp;
         }
     }
 
-    protected DataProcessor getDataProcessor(CompilationParams params) throws DaffodilCompileException {
-        if (cache != null) {
-            try {
-                return cache.get(params);
-            } catch (ExecutionException e) {
-                throw new DaffodilCompileException(e);
+    /**
+     * The message for a log format and arguments with FlowFiles and numbers
+     * removed, so that the same failure for different FlowFiles is counted
+     * together
+     */
+    static String toTemplate(String format, Object[] args) {
+        final StringBuilder sb = new StringBuilder();
+        int from = 0;
+        for (Object arg : args) {
+            final int i = format.indexOf("{}", from);
+            if (i < 0) {
+                break;
             }
+            sb.append(format, from, i);
+            sb.append(arg instanceof FlowFile ? "FlowFile" : String.valueOf(arg));
+            from = i + 2;
+        }
+        sb.append(format, from, format.length());
+        return DiagnosticSummary.toTemplate(sb.toString());
+    }
+
+    /**
+     * The template a diagnostic is counted by: its type and the start of its
+     * message. This avoids toString(), which adds the schema and data context
+     * of each diagnostic that the summary leaves out anyway.
+     */
+    static String toTemplate(Diagnostic diag) {
+        return diag.getClass().getSimpleName() + ": "
+            + DiagnosticSummary.toTemplate(String.valueOf(diag.getMessage()), DiagnosticSummary.DIAGNOSTIC_TEMPLATE_LENGTH);
+    }
+
+    @OnStopped
+    public void logDiagnosticSummary() {
+        if (diagnosticSummaryTimer != null) {
+            diagnosticSummaryTimer.shutdownNow();
+            diagnosticSummaryTimer = null;
+        }
+        final DiagnosticSummary summary = diagnosticSummary;
+        if (summary != null) {
+            summary.log(getLogger());
+        }
+    }
+
+    /**
+     * Returns true if FlowFile content is decompressed before being passed to
+     * processWithDaffodil, in which case the size of the InputStream is no
+     * longer the same as the size of the FlowFile
+     */
+    protected boolean isInputCompressed() {
+        return !inputCompression.equals(COMPRESSION_NONE);
+    }
+
+    /**
+     * Wraps an InputStream so that everything read from it is decompressed.
+     * The returned stream must be closed to release the decompressor, which
+     * for zstd holds native memory. Closing it closes the wrapped stream, so
+     * pass a NonCloseableInputStream to keep NiFi's stream open. If the
+     * compression is 'none', the InputStream is returned as is.
+     */
+    static InputStream decompress(InputStream in, String compression) throws IOException {
+        switch (compression) {
+            case COMPRESSION_NONE: return in;
+            case COMPRESSION_GZIP: return new GZIPInputStream(in, ReusableOutputStream.DEFAULT_BUFFER_SIZE);
+            case COMPRESSION_ZSTD: return new ZstdInputStream(in);
+            default: throw new AssertionError("compression was not one of 'none', 'gzip', or 'zstd'");
+        }
+    }
+
+    /**
+     * Wraps an OutputStream so that everything written to it is compressed.
+     * The returned stream must be closed to finish the compressed data and
+     * release the compressor, even if processing fails. Closing it closes the
+     * wrapped stream, so pass a NonCloseableOutputStream to keep NiFi's
+     * stream open. If the compression is 'none', the OutputStream is returned
+     * as is.
+     */
+    static OutputStream compress(OutputStream out, String compression) throws IOException {
+        switch (compression) {
+            case COMPRESSION_NONE: return out;
+            case COMPRESSION_GZIP: return new GZIPOutputStream(out, ReusableOutputStream.DEFAULT_BUFFER_SIZE);
+            case COMPRESSION_ZSTD: return new ZstdOutputStream(out);
+            default: throw new AssertionError("compression was not one of 'none', 'gzip', or 'zstd'");
+        }
+    }
+
+    /**
+     * Select the range of a FlowFile's content to process by setting the
+     * contentOffset and contentLength of the state. By default the whole
+     * content is processed.
+     */
+    protected void selectContent(final ProcessContext context, final FlowFile ff, final ProcessingState state) throws DaffodilProcessingException { }
+
+    /**
+     * Returns the range of the content selected by selectContent. Skipping
+     * the content stream seeks in the content repository, so the range is
+     * read in place instead of being copied to a FlowFile of its own.
+     */
+    static InputStream sliceContent(InputStream in, ProcessingState state) throws IOException {
+        if (state.contentLength < 0) {
+            return in;
+        }
+        ByteStreams.skipFully(in, state.contentOffset);
+        return ByteStreams.limit(in, state.contentLength);
+    }
+
+    /**
+     * Returns the InputStream Daffodil should parse from. If the input is
+     * decompressed, its size is not known until it has been read to the end,
+     * so the bytes Daffodil reads are counted for use by checkLeftOverData.
+     */
+    protected InputStream getParseInputStream(InputStream in) {
+        return isInputCompressed() ? new CountingInputStream(in) : in;
+    }
+
+    /**
+     * Throws a DaffodilProcessingException if a successful parse did not
+     * consume all of the data, unless the state allows the left over data to
+     * be routed to the remainder relationship, in which case its offset is
+     * recorded in the state. The parseIn parameter must be the InputStream
+     * returned by getParseInputStream.
+     */
+    protected void checkLeftOverData(FlowFile ff, InputStream parseIn, ParseResult pr, ProcessingState state) throws IOException {
+        long bitsRead = DaffodilEngine.getBitsConsumed(pr);
+        long inputSize;
+        if (parseIn instanceof CountingInputStream) {
+            CountingInputStream countingIn = (CountingInputStream)parseIn;
+            ByteStreams.exhaust(countingIn);
+            inputSize = countingIn.getCount();
         } else {
-            return params.newDataProcessor(getLogger());
+            inputSize = state.getContentSize(ff);
+        }
+        long leftOverBits = DaffodilEngine.getLeftOverBits(pr, inputSize);
+        if (leftOverBits != 0) {
+            // the remainder is a range of the original content, so it must be uncompressed
+            // and start on a byte boundary
+            if (state.remainderAllowed && !(parseIn instanceof CountingInputStream) && bitsRead % 8 == 0) {
+                state.remainderOffset = bitsRead / 8;
+                return;
+            }
+            logFailure(state, "Left over data. Consumed {} bit(s) with {} bit(s) remaining when parsing {}", new Object[]{bitsRead, leftOverBits, ff});
+            throw new DaffodilProcessingException("Left over data found");
+        }
+    }
+
+    static String getCompressionMimeType(String compression) {
+        switch (compression) {
+            case COMPRESSION_GZIP: return GZIP_MIME_TYPE;
+            case COMPRESSION_ZSTD: return ZSTD_MIME_TYPE;
+            default: throw new AssertionError("Unhandled compression: " + compression);
         }
     }
 
+    private static Set<Relationship> getRelationships(boolean routeRemainder) {
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        if (routeRemainder) {
+            relationships.add(REL_REMAINDER);
+        }
+        return Collections.unmodifiableSet(relationships);
+    }
+
     @Override
     public Set<Relationship> getRelationships() {
         return relationships;
     }
 
+    /**
+     * The remainder relationship only exists if 'Left Over Data' routes to
+     * it, so existing flows do not need to connect or terminate it
+     */
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        if (descriptor.equals(LEFT_OVER_DATA)) {
+            relationships = getRelationships(LEFT_OVER_DATA_REMAINDER.equals(newValue));
+        }
+    }
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return properties;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (validationContext.getProperty(VALIDATION_SAMPLE_PERCENTAGE).isSet() && validationContext.getProperty(VALIDATION_SAMPLE_INTERVAL).isSet()) {
+            results.add(new ValidationResult.Builder()
+                .subject(VALIDATION_SAMPLE_INTERVAL.getDisplayName())
+                .valid(false)
+                .explanation("only one of 'Full Validation Sample Percentage' and 'Full Validation Sample Interval' may be set")
+                .build());
+        }
+        final String infosetType = hasInfosetType() ? validationContext.getProperty(INFOSET_TYPE).getValue() : null;
+        if (hasInfosetType() && validationContext.getProperty(XSLT_STYLESHEET).isSet()
+                && !INFOSET_TYPE_XML.equals(infosetType) && !INFOSET_TYPE_ATTRIBUTE.equals(infosetType)) {
+            results.add(new ValidationResult.Builder()
+                .subject(XSLT_STYLESHEET.getDisplayName())
+                .valid(false)
+                .explanation("'XSLT Stylesheet' requires the 'xml' infoset type")
+                .build());
+        }
+        return results;
+    }
+
+    /**
+     * Parses the value of the 'Daffodil Tunables' property into an unmodifiable
+     * map. The map is sorted so that equal sets of tunables are equal
+     * CompilationParams regardless of the order they are listed.
+     */
+    static Map<String, String> parseTunables(String value) {
+        if (value == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> parsed = new TreeMap<>();
+        for (String entry : value.split("[,\\n]")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final int eq = entry.indexOf('=');
+            if (eq <= 0 || eq == entry.length() - 1) {
+                throw new IllegalArgumentException("tunable '" + entry + "' must be of the form name=value");
+            }
+            final String name = entry.substring(0, eq).trim();
+            if (parsed.put(name, entry.substring(eq + 1).trim()) != null) {
+                throw new IllegalArgumentException("tunable '" + name + "' is defined more than once");
+            }
+        }
+        return parsed.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(parsed);
+    }
+
+    /**
+     * Tunables from the 'Daffodil Tunables' property, to be included in any
+     * CompilationParams created by subclasses
+     */
+    protected Map<String, String> getTunables() {
+        return tunables;
+    }
+
     @Override
     protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
         // all dynamic properties are treated as variables, with the property name/value set as the variable
@@ -376,58 +1003,356 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
         final ComponentLog logger = getLogger();
         final Integer cacheSize = context.getProperty(CACHE_SIZE).asInteger();
         final Long cacheTTL = context.getProperty(CACHE_TTL_AFTER_LAST_ACCESS).asTimePeriod(TimeUnit.SECONDS);
+        final Double cacheMaxMemory = context.getProperty(CACHE_MAX_MEMORY).asDataSize(DataUnit.B);
+        inputCompression = hasInputFlowFiles() ? context.getProperty(INPUT_COMPRESSION).getValue() : COMPRESSION_NONE;
+        outputCompression = context.getProperty(OUTPUT_COMPRESSION).getValue();
+        if (!isUnparse() && hasInputFlowFiles()) {
+            validationSamplePercentage = context.getProperty(VALIDATION_SAMPLE_PERCENTAGE).asInteger();
+            validationSampleInterval = context.getProperty(VALIDATION_SAMPLE_INTERVAL).asInteger();
+        }
+        validationSampleCounts.clear();
+        tunables = parseTunables(context.getProperty(TUNABLES).getValue());
 
-        if (cacheSize != null && cacheSize > 0) {
-            CacheBuilder cacheBuilder = CacheBuilder.newBuilder().maximumSize(cacheSize);
-            if (cacheTTL != null && cacheTTL > 0) {
-                cacheBuilder = cacheBuilder.expireAfterAccess(cacheTTL, TimeUnit.SECONDS);
-            }
+        final ClassLoader loader = getClass().getClassLoader();
+        final SchemaCache cache;
+        if (cacheMaxMemory != null && cacheMaxMemory.longValue() > 0) {
+            cache = SchemaCache.ofMaximumMemory(cacheMaxMemory.longValue(), cacheTTL == null ? 0 : cacheTTL, loader, new SchemaCache.Listener() {
+                public void cached(CompilationParams params, int weight, long totalWeight) {
+                    logger.info("Cached compiled DFDL schema {} with an estimated size of {} bytes. Total estimated cache size is {} bytes", new Object[]{params.getDfdlSchema(), weight, totalWeight});
+                }
+
+                public void removed(CompilationParams params, Integer weight, String cause, long totalWeight) {
+                    logger.info("Removed compiled DFDL schema {} with an estimated size of {} bytes from the cache ({}). Total estimated cache size is {} bytes", new Object[]{params.getDfdlSchema(), weight, cause, totalWeight});
+                }
 
-            cache = cacheBuilder.build(
-               new CacheLoader<CompilationParams, DataProcessor>() {
-                   public DataProcessor load(CompilationParams params) throws DaffodilCompileException {
-                       return params.newDataProcessor(logger);
-                   }
-               });
+                public void sizeEstimateFailed(CompilationParams params) {
+                    logger.warn("Failed to estimate the size of compiled DFDL schema {}, it will not count towards 'Cache Max Memory'", new Object[]{params.getDfdlSchema()});
+                }
+            });
+        } else if (cacheMaxMemory != null) {
+            cache = null;
+            logger.warn("Daffodil data processor cache disabled because cache max memory is set to 0.");
+        } else if (cacheSize != null && cacheSize > 0) {
+            cache = SchemaCache.ofMaximumSize(cacheSize, cacheTTL == null ? 0 : cacheTTL, loader);
         } else {
             cache = null;
             logger.warn("Daffodil data processor cache disabled because cache size is set to 0.");
         }
+        engine = new DaffodilEngine(loader, cache);
+
+        infosetTypeValue = hasInfosetType() ? context.getProperty(INFOSET_TYPE).getValue() : null;
+        switch (context.getProperty(VALIDATION_MODE).getValue()) {
+            case VALIDATION_MODE_OFF: validationMode = "off"; break;
+            case VALIDATION_MODE_LIMITED: validationMode = "daffodil"; break;
+            case VALIDATION_MODE_FULL: validationMode = SharedGrammarValidatorFactory.NAME; break;
+            default: throw new AssertionError("validation mode was not one of 'off', 'limited', or 'full'");
+        }
+        routeRemainder = !isUnparse() && LEFT_OVER_DATA_REMAINDER.equals(context.getProperty(LEFT_OVER_DATA).getValue());
+        stylesheetSet = hasInfosetType() && hasInputFlowFiles() && context.getProperty(XSLT_STYLESHEET).isSet();
+        diagnosticsMaxLength = context.getProperty(DIAGNOSTICS_ATTRIBUTE_MAX_LENGTH).asInteger();
+        final long diagnosticsInterval = context.getProperty(DIAGNOSTICS_LOG_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+        if (diagnosticsInterval > 0) {
+            final DiagnosticSummary summary = new DiagnosticSummary(diagnosticsInterval, context.getProperty(DIAGNOSTICS_LOG_INTERVAL).getValue());
+            diagnosticSummary = summary;
+            diagnosticSummaryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, getClass().getSimpleName() + " diagnostic summary");
+                thread.setDaemon(true);
+                return thread;
+            });
+            diagnosticSummaryTimer.scheduleWithFixedDelay(() -> summary.logIfDue(getLogger()),
+                diagnosticsInterval, diagnosticsInterval, TimeUnit.NANOSECONDS);
+        } else {
+            diagnosticSummary = null;
+        }
+
+        final Double largeThreshold = hasInputFlowFiles() ? context.getProperty(LARGE_FLOWFILE_THRESHOLD).asDataSize(DataUnit.B) : null;
+        largeFlowFileMaxTasks = hasInputFlowFiles() ? context.getProperty(LARGE_FLOWFILE_MAX_CONCURRENT_TASKS).asInteger() : 1;
+        largeFlowFileTasks.set(0);
+        if (largeThreshold != null) {
+            final long threshold = largeThreshold.longValue();
+            largeFlowFileThreshold = threshold;
+            smallFlowFileFilter = ff -> ff.getSize() < threshold
+                ? FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_TERMINATE
+                : FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE;
+            if (largeFlowFileMaxTasks >= context.getMaxConcurrentTasks()) {
+                logger.warn("'Large FlowFile Max Concurrent Tasks' is {} but there are only {} concurrent tasks, so small FlowFiles may still wait behind large FlowFiles", new Object[]{largeFlowFileMaxTasks, context.getMaxConcurrentTasks()});
+            }
+        } else {
+            largeFlowFileThreshold = null;
+            smallFlowFileFilter = null;
+        }
+
+        stylesheetCache = CacheBuilder.newBuilder()
+            .maximumSize(STYLESHEET_CACHE_SIZE)
+            .build(new CacheLoader<String, Templates>() {
+                public Templates load(String stylesheet) throws TransformerException {
+                    return compileStylesheet(stylesheet);
+                }
+            });
+
+        final List<PropertyDescriptor> dynamic = new ArrayList<>();
+        for (final PropertyDescriptor pd : context.getProperties().keySet()) {
+            if (pd.isDynamic()) {
+                dynamic.add(pd);
+            }
+        }
+        dynamicProperties = dynamic;
+
+        staticParams = null;
+        staticDataProcessor = null;
+        resolveStaticDataProcessor(context);
+    }
+
+    /**
+     * When no property that selects the DataProcessor uses expression language,
+     * every FlowFile uses the same DataProcessor, so get it now and let onTrigger
+     * skip evaluating properties and looking it up in the cache. This is not
+     * done if the cache is disabled, since then a new DataProcessor is expected
+     * for every FlowFile, or if the compiled schema does not stay in the cache,
+     * since holding on to it would exceed 'Cache Max Memory'. If the schema
+     * fails to compile or the variables are not valid, FlowFiles take the normal
+     * path so that the error is reported for each FlowFile as usual.
+     */
+    private void resolveStaticDataProcessor(final ProcessContext context) {
+        if (engine.getCache() == null) {
+            return;
+        }
+        final PropertyValue dfdlSchemaValue = context.getProperty(DFDL_SCHEMA_FILE);
+        final PropertyValue preCompiledValue = context.getProperty(PRE_COMPILED_SCHEMA);
+        if (dfdlSchemaValue.isExpressionLanguagePresent() || preCompiledValue.isExpressionLanguagePresent()) {
+            return;
+        }
+        final LinkedHashMap<String, String> variableMap = new LinkedHashMap<>();
+        for (final PropertyDescriptor pd : dynamicProperties) {
+            final PropertyValue value = context.getProperty(pd);
+            if (value.isExpressionLanguagePresent()) {
+                return;
+            }
+            final String variable = value.evaluateAttributeExpressions().getValue();
+            if (!variable.isEmpty()) {
+                variableMap.put(pd.getName(), variable);
+            }
+        }
+
+        final CompilationParams params = new CompilationParams(
+            dfdlSchemaValue.evaluateAttributeExpressions().getValue(),
+            preCompiledValue.evaluateAttributeExpressions().asBoolean(),
+            validationMode,
+            tunables);
+        try {
+            final DataProcessor dp = getDataProcessor(params);
+            if (!engine.isCached(params)) {
+                return;
+            }
+            staticDataProcessor = variableMap.isEmpty() ? dp : dp.withExternalVariables(variableMap);
+            staticParams = params;
+        } catch (DaffodilCompileException | ExternalVariableException e) {
+            getLogger().debug("DataProcessor will be resolved for each FlowFile: {}", new Object[]{e.getMessage()});
+        }
+    }
+
+    /**
+     * Returns the compiled 'XSLT Stylesheet' for a FlowFile, or null if the
+     * property is not set. Like DFDL schemas, the stylesheet is a file or a
+     * resource in 'Plugins and Schemas'.
+     */
+    protected Templates getStylesheet(final ProcessContext context, final FlowFile ff) throws DaffodilProcessingException {
+        if (!stylesheetSet) {
+            return null;
+        }
+        final String stylesheet = context.getProperty(XSLT_STYLESHEET).evaluateAttributeExpressions(ff).getValue();
+        try {
+            return stylesheetCache.get(stylesheet);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            getLogger().error("Failed to compile 'XSLT Stylesheet' {}: {}", new Object[]{stylesheet, e.getCause().getMessage()});
+            throw new DaffodilProcessingException("Failed to compile 'XSLT Stylesheet': " + stylesheet, e.getCause());
+        }
+    }
+
+    private Templates compileStylesheet(String stylesheet) throws TransformerException {
+        URL stylesheetURL = null;
+        final File f = new File(stylesheet);
+        if (f.isFile()) {
+            try {
+                stylesheetURL = f.toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new TransformerException("Invalid 'XSLT Stylesheet' property: " + e);
+            }
+        } else {
+            stylesheetURL = getClass().getClassLoader().getResource(stylesheet);
+        }
+        if (stylesheetURL == null) {
+            throw new TransformerException("Failed to find 'XSLT Stylesheet' as a file or in 'Plugins and Schemas': " + stylesheet);
+        }
+        // the system id lets xsl:include and xsl:import find stylesheets relative to this one
+        return newTransformerFactory().newTemplates(new StreamSource(stylesheetURL.toString()));
+    }
+
+    /**
+     * A TransformerFactory that supports SAX. NiFi sets the context class
+     * loader to the class loader of this processor, so an XSLT implementation
+     * in 'Plugins and Schemas' is used if there is one
+     */
+    static SAXTransformerFactory newTransformerFactory() throws TransformerException {
+        final TransformerFactory factory = TransformerFactory.newInstance();
+        if (!factory.getFeature(SAXTransformerFactory.FEATURE)) {
+            throw new TransformerException("TransformerFactory " + factory.getClass().getName() + " does not support SAX");
+        }
+        try {
+            // XML input to unparse must not be able to read external DTDs
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        } catch (IllegalArgumentException e) {
+            // not supported by all implementations
+        }
+        return (SAXTransformerFactory) factory;
+    }
+
+    /**
+     * The mime type of the result of a stylesheet, from its media-type or
+     * method output property
+     */
+    static String getStylesheetMimeType(Templates templates) {
+        // only an explicitly set media-type is used, otherwise the default
+        // for the method would be used, which is text/xml for xml
+        final Properties output = templates.getOutputProperties();
+        final Object mediaType = output.get(OutputKeys.MEDIA_TYPE);
+        if (mediaType != null) {
+            return mediaType.toString();
+        }
+        final String method = output.getProperty(OutputKeys.METHOD);
+        if ("html".equals(method)) {
+            return "text/html";
+        } else if ("text".equals(method)) {
+            return "text/plain";
+        }
+        return XML_MIME_TYPE;
+    }
+
+    /**
+     * Get the DataProcessor for a FlowFile, evaluating the properties that
+     * select it against the FlowFile attributes. The DataProcessor likely comes
+     * from a cache of already compiled data processors. The only change that
+     * should happen to the cached DataProcessor is setting variables specific to
+     * the flowfile. We don't cache DataProcessor with variables preset because
+     * variables are expressions and could change per flow file. Also, assigning
+     * external variables is pretty efficient so not worth caching.
+     */
+    DataProcessor getDataProcessor(final ProcessContext context, final FlowFile ff, final String dfdlSchema, final boolean sampledValidation) {
+        final Boolean preCompiled = context.getProperty(PRE_COMPILED_SCHEMA).evaluateAttributeExpressions(ff).asBoolean();
+        final CompilationParams params = new CompilationParams(dfdlSchema, preCompiled, sampledValidation ? SharedGrammarValidatorFactory.NAME : validationMode, tunables);
+
+        final DataProcessor cachedDP;
+        try {
+            cachedDP = getDataProcessor(params);
+        } catch (DaffodilCompileException e) {
+            throw new ProcessException(e);
+        }
+
+        final Map<String, String> variableMap = evaluateVariables(context, ff);
+        if (variableMap.isEmpty()) {
+            return cachedDP;
+        }
+        try {
+            return cachedDP.withExternalVariables(variableMap);
+        } catch (ExternalVariableException ex) {
+            throw new ProcessException("variables not valid for schema: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Treat dynamic properties as variables. If the value of the variable is the empty
+     * string (or an expression that evaluates to the empty string), the dynamic property is
+     * ignored and is not added as a variable. This supports expressions that determine that
+     * a variable does not apply to a schema and to ignore it, since all varibles passed to
+     * withExternalVariables must be valid for that schema.
+     */
+    protected Map<String, String> evaluateVariables(final ProcessContext context, final FlowFile ff) {
+        if (dynamicProperties.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final LinkedHashMap<String, String> variableMap = new LinkedHashMap<>();
+        for (final PropertyDescriptor pd : dynamicProperties) {
+            final String value = context.getProperty(pd).evaluateAttributeExpressions(ff).getValue();
+            if (!value.isEmpty()) {
+                variableMap.put(pd.getName(), value);
+            }
+        }
+        return variableMap;
+    }
+
+    /**
+     * Take a slot for processing large FlowFiles if fewer than 'Large
+     * FlowFile Max Concurrent Tasks' are in use
+     */
+    boolean acquireLargeFlowFileTask() {
+        int tasks;
+        do {
+            tasks = largeFlowFileTasks.get();
+            if (tasks >= largeFlowFileMaxTasks) {
+                return false;
+            }
+        } while (!largeFlowFileTasks.compareAndSet(tasks, tasks + 1));
+        return true;
+    }
+
+    void releaseLargeFlowFileTask() {
+        largeFlowFileTasks.decrementAndGet();
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        final FlowFile original = session.get();
-        if (original == null) {
+        if (largeFlowFileThreshold == null) {
+            final FlowFile original = session.get();
+            if (original != null) {
+                processFlowFile(context, session, original);
+            }
             return;
         }
 
+        // A task with a large FlowFile slot takes the next FlowFile of any size. All other
+        // tasks skip over large FlowFiles, so small FlowFiles never wait behind more than
+        // 'Large FlowFile Max Concurrent Tasks' large ones
+        final boolean largeTask = acquireLargeFlowFileTask();
+        try {
+            final FlowFile original;
+            if (largeTask) {
+                original = session.get();
+            } else {
+                final List<FlowFile> small = session.get(smallFlowFileFilter);
+                original = small.isEmpty() ? null : small.get(0);
+            }
+            if (original != null) {
+                processFlowFile(context, session, original);
+            }
+        } finally {
+            if (largeTask) {
+                releaseLargeFlowFileTask();
+            }
+        }
+    }
+
+    private void processFlowFile(final ProcessContext context, final ProcessSession session, final FlowFile original) {
         final ComponentLog logger = getLogger();
         final StopWatch stopWatch = new StopWatch(true);
-        final String dfdlSchema = context.getProperty(DFDL_SCHEMA_FILE).evaluateAttributeExpressions(original).getValue();
-        final Boolean preCompiled = context.getProperty(PRE_COMPILED_SCHEMA).evaluateAttributeExpressions(original).asBoolean();
-        String infosetTypeValue = context.getProperty(INFOSET_TYPE).getValue();
+        final DataProcessor staticDP = staticDataProcessor;
+        final String dfdlSchema = staticDP != null ? staticParams.getDfdlSchema() : context.getProperty(DFDL_SCHEMA_FILE).evaluateAttributeExpressions(original).getValue();
         final String infosetType;
-        final String validationMode;
 
-        switch (context.getProperty(VALIDATION_MODE).getValue()) {
-            case VALIDATION_MODE_OFF: validationMode = "off"; break;
-            case VALIDATION_MODE_LIMITED: validationMode = "daffodil"; break;
-            case VALIDATION_MODE_FULL: validationMode = "xerces"; break;
-            default: throw new AssertionError("validation mode was not one of 'off', 'limited', or 'full'");
-        }
+        // Sampled FlowFiles use a full validation variant of the same compiled schema
+        final boolean sampledValidation = !validationMode.equals(SharedGrammarValidatorFactory.NAME) && isValidationSampled(dfdlSchema);
+        final ProcessingState state = new ProcessingState(dfdlSchema, sampledValidation, routeRemainder && !isInputCompressed());
 
-        CompilationParams params = new CompilationParams(dfdlSchema, preCompiled, validationMode);
-
-        if (infosetTypeValue.equals(INFOSET_TYPE_ATTRIBUTE)) {
+        if (INFOSET_TYPE_ATTRIBUTE.equals(infosetTypeValue)) {
             if (!isUnparse()) { throw new AssertionError("infoset type 'attribute' should only occur with Daffodil unparse"); }
 
             String inputMimeType = original.getAttribute(CoreAttributes.MIME_TYPE.key());
             switch (inputMimeType == null ? "" : inputMimeType) {
                 case XML_MIME_TYPE: infosetType = INFOSET_TYPE_XML; break;
                 case JSON_MIME_TYPE: infosetType = INFOSET_TYPE_JSON; break;
+                case CBOR_MIME_TYPE: infosetType = INFOSET_TYPE_CBOR; break;
+                case SMILE_MIME_TYPE: infosetType = INFOSET_TYPE_SMILE; break;
                 default:
-                    logger.error("Infoset Type is 'attribute', but the mime.type attribute is not set or not recognized for {}.", new Object[]{original});
+                    logFailure(state, "Infoset Type is 'attribute', but the mime.type attribute is not set or not recognized for {}.", new Object[]{original});
                     session.transfer(original, REL_FAILURE);
                     return;
             }
@@ -436,73 +1361,96 @@ public abstract class AbstractDaffodilProcessor extends AbstractProcessor {
         }
 
 
+        // If a remainder is possible, a clone of the original refers to the original content after
+        // the output replaces it, so that a remainder can be cloned from it without copying
+        FlowFile snapshot = null;
 
         try {
-            // Get the DataProcessor, likely from a cache of already compiled data processors. The only change
-            // that should happen to the cached DataProcessor is setting variables specific to the flowfile.
-            // We don't cache DataProcessor with variables preset because variables are expressions and could
-            // change per flow file. Also, assigning external variables is pretty efficient so not worth
-            // caching.
-            final DataProcessor cachedDP;
             final DataProcessor dpForProcessing;
-            try {
-                cachedDP = getDataProcessor(params);
-            } catch (DaffodilCompileException e) {
-                throw new ProcessException(e);
-            }
-
-            // Treat dynamic properties as variables. If the value of the variable is the empty
-            // string (or an expression that evaluates to the empty string), the dynamic property is
-            // ignored and is not added as a variable. This supports expressions that determine that
-            // a variable does not apply to a schema and to ignore it, since all varibles passed to
-            // withExternalVariables must be valid for that schema.
-            final LinkedHashMap<String, String> variableMap = new LinkedHashMap<>();
-            for (final PropertyDescriptor pd : context.getProperties().keySet()) {
-                if (pd.isDynamic()) {
-                    final String value = context.getProperty(pd.getName()).evaluateAttributeExpressions(original).getValue();
-                    if (!value.isEmpty()) {
-                        variableMap.put(pd.getName(), value);
-                    }
-                }
-            }
-
-            if (variableMap.isEmpty()) {
-                dpForProcessing = cachedDP;
+            if (staticDP != null && !sampledValidation) {
+                dpForProcessing = staticDP;
             } else {
-                try {
-                    dpForProcessing = cachedDP.withExternalVariables(variableMap);
-                } catch (ExternalVariableException ex) {
-                    throw new ProcessException("variables not valid for schema: " + ex.getMessage());
-                }
+                dpForProcessing = getDataProcessor(context, original, dfdlSchema, sampledValidation);
             }
 
-            FlowFile output = session.write(original, new StreamCallback() {
+            final StreamCallback callback = new StreamCallback() {
                 @Override
                 public void process(final InputStream in, final OutputStream out) throws IOException {
                     // Parse or unparse the flow file, reading from the input stream and writing
-                    // to the output stream
-                    processWithDaffodil(dpForProcessing, original, in, out, infosetType);
+                    // to the output stream. Any decompression/compression happens as the data
+                    // streams through Daffodil, so the uncompressed data is never written to the
+                    // content repository. The codecs are closed even if processing fails, since they
+                    // hold an Inflater/Deflater or native zstd memory, but NiFi's streams are not
+                    selectContent(context, original, state);
+                    try (InputStream dataIn = decompress(new NonCloseableInputStream(sliceContent(in, state)), inputCompression);
+                         OutputStream dataOut = compress(new NonCloseableOutputStream(out), outputCompression)) {
+                        processWithDaffodil(context, dpForProcessing, original, dataIn, dataOut, infosetType, state);
+                    }
                 }
-            });
+            };
+            if (state.remainderAllowed) {
+                snapshot = session.clone(original);
+            }
+            FlowFile output = session.write(original, callback);
 
-            final String outputMimeType = getOutputMimeType(infosetType);
+            final String outputMimeType;
+            if (outputCompression.equals(COMPRESSION_NONE)) {
+                outputMimeType = state.outputMimeType != null ? state.outputMimeType : getOutputMimeType(infosetType);
+            } else {
+                outputMimeType = getCompressionMimeType(outputCompression);
+            }
             if (outputMimeType != null) {
                 output = session.putAttribute(output, CoreAttributes.MIME_TYPE.key(), outputMimeType);
             } else {
                 output = session.removeAttribute(output, CoreAttributes.MIME_TYPE.key());
             }
 
+            if (!state.getAttributes().isEmpty()) {
+                output = session.putAllAttributes(output, state.getAttributes());
+            }
+            if (sampledValidation) {
+                session.adjustCounter("Sampled Full Validations", 1, false);
+                if ("false".equals(state.getAttributes().get(VALIDATION_VALID_ATTRIBUTE))) {
+                    session.adjustCounter("Sampled Full Validations Invalid", 1, false);
+                }
+            }
+
+            if (state.resultCacheHit != null) {
+                session.adjustCounter(state.resultCacheHit ? "Result Cache Hits" : "Result Cache Misses", 1, false);
+            }
+
+            if (state.remainderOffset >= 0) {
+                final long remainderStart = state.contentOffset + state.remainderOffset;
+                FlowFile remainder = session.clone(snapshot, remainderStart, state.getContentSize(snapshot) - state.remainderOffset);
+                remainder = session.putAttribute(remainder, REMAINDER_OFFSET_ATTRIBUTE, Long.toString(remainderStart));
+                session.transfer(remainder, REL_REMAINDER);
+                session.adjustCounter("Remainders", 1, false);
+            }
+            if (snapshot != null) {
+                session.remove(snapshot);
+            }
+
             session.transfer(output, REL_SUCCESS);
             session.getProvenanceReporter().modifyContent(output, stopWatch.getElapsed(TimeUnit.MILLISECONDS));
             logger.debug("Processed {}", new Object[]{original});
         } catch (ProcessException e) {
-            logger.error("Failed to process {} due to {}", new Object[]{original, e.getMessage()});
-            session.transfer(original, REL_FAILURE);
+            logFailure(state, "Failed to process {} due to {}", new Object[]{original, e.getMessage()});
+            if (snapshot != null) {
+                session.remove(snapshot);
+            }
+            FlowFile failure = original;
+            if (state.diagnostics != null) {
+                failure = session.putAttribute(failure, DIAGNOSTICS_ATTRIBUTE, state.diagnostics.toString());
+            }
+            session.transfer(failure, REL_FAILURE);
         }
     }
 
     public static void logDiagnostics(ComponentLog logger, WithDiagnostics withDiags) {
-        final List<Diagnostic> diags = withDiags.getDiagnostics();
+        logDiagnostics(logger, withDiags.getDiagnostics());
+    }
+
+    public static void logDiagnostics(ComponentLog logger, List<Diagnostic> diags) {
         for (Diagnostic diag : diags) {
             String message = diag.toString();
             if (diag.isError()) {
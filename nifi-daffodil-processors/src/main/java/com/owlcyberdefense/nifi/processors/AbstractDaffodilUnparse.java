@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DaffodilUnparseContentHandler;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.UnparseResult;
+import org.apache.daffodil.api.infoset.InfosetInputter;
+
+/**
+ * Unparsing with Daffodil, shared by DaffodilUnparse and
+ * DaffodilUnparseNoPlugins, which differ only in how NiFi loads their
+ * classes. Processor annotations are on the concrete classes, since
+ * @RequiresInstanceClassLoading is inherited and must not apply to
+ * DaffodilUnparseNoPlugins.
+ */
+public abstract class AbstractDaffodilUnparse extends AbstractDaffodilProcessor {
+
+    static final String INFOSET_FRAMING_SINGLE = "single";
+    static final String INFOSET_FRAMING_NEWLINE = "newline-delimited";
+    static final String INFOSET_FRAMING_CONCATENATED = "concatenated";
+
+    public static final PropertyDescriptor INFOSET_FRAMING = new PropertyDescriptor.Builder()
+            .name("infoset-framing")
+            .displayName("Infoset Framing")
+            .description("How infosets are delimited in the incoming FlowFile. 'single' expects exactly one infoset. 'newline-delimited' expects one infoset per line, such as newline-delimited JSON, and is not supported for the 'cbor' and 'smile' infoset types. 'concatenated' expects a sequence of XML documents, JSON objects, or CBOR or Smile values, one after another. All infosets in a FlowFile are unparsed, in order, to the same output FlowFile.")
+            .required(true)
+            .defaultValue(INFOSET_FRAMING_SINGLE)
+            .allowableValues(INFOSET_FRAMING_SINGLE, INFOSET_FRAMING_NEWLINE, INFOSET_FRAMING_CONCATENATED)
+            .build();
+
+    static final String INFOSET_COUNT_ATTRIBUTE = "daffodil.infoset.count";
+
+    /**
+     * Channel owned by a single thread that is rebound to each FlowFile's
+     * OutputStream, avoiding a new Channels.newChannel wrapper and its
+     * transfer buffer for every FlowFile. InfosetInputters cannot be pooled
+     * the same way since they read ahead from their InputStream as soon as
+     * they are created and cannot be rebound to a new one.
+     */
+    private final ThreadLocal<ReusableOutputStream> pooledChannel = ThreadLocal.withInitial(ReusableOutputStream::new);
+
+    /**
+     * Splitter owned by a single thread, used to find the infosets in a
+     * FlowFile when 'Infoset Framing' is not 'single'
+     */
+    private final ThreadLocal<InfosetSplitter> pooledSplitter = ThreadLocal.withInitial(InfosetSplitter::new);
+
+    /**
+     * The infosets in a FlowFile, returning a stream of each one in turn, or
+     * null when there are no more
+     */
+    private interface InfosetSource {
+        InputStream next() throws IOException;
+    }
+
+    private InfosetInputter getInfosetInputter(String infosetType, InputStream is) {
+        switch (infosetType) {
+            case INFOSET_TYPE_XML: return Daffodil.newXMLTextInfosetInputter(is);
+            case INFOSET_TYPE_JSON: return Daffodil.newJsonInfosetInputter(is);
+            // binary infosets are transcoded to JSON text by BinaryJsonInfoset.Reader
+            case INFOSET_TYPE_CBOR:
+            case INFOSET_TYPE_SMILE: return Daffodil.newJsonInfosetInputter(is);
+            default: throw new AssertionError("Unhandled infoset type: " + infosetType);
+        }
+    }
+
+    private static InfosetSplitter.BoundaryScanner getBoundaryScanner(String framing, String infosetType) {
+        if (INFOSET_FRAMING_NEWLINE.equals(framing)) {
+            return new InfosetSplitter.NewlineBoundaryScanner();
+        }
+        switch (infosetType) {
+            case INFOSET_TYPE_XML: return new InfosetSplitter.XmlBoundaryScanner();
+            case INFOSET_TYPE_JSON: return new InfosetSplitter.JsonBoundaryScanner();
+            default: throw new AssertionError("Unhandled infoset type: " + infosetType);
+        }
+    }
+
+    @Override
+    protected boolean isUnparse() { return true; }
+
+    @Override
+    protected List<PropertyDescriptor> getAdditionalProperties() {
+        return Collections.singletonList(INFOSET_FRAMING);
+    }
+
+    /**
+     * The resulting output mime type of an unparse action cannot be known
+     * since it is entirely based on the DFDL schema. Since we do not know the
+     * mime type, return null. This will signifiy to the abstract daffodil
+     * processor that the mime.type attribute should be removed from the output
+     * FlowFile.
+     */
+    @Override
+    protected String getOutputMimeType(String infosetType) {
+        return null;
+    }
+
+    @Override
+    protected void processWithDaffodil(final ProcessContext context, final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType, ProcessingState state) throws IOException {
+        final ReusableOutputStream wbc = pooledChannel.get();
+        wbc.bind(out);
+
+        final String framing = context.getProperty(INFOSET_FRAMING).getValue();
+        final Templates stylesheet = getStylesheet(context, ff);
+        if (stylesheet != null && !INFOSET_TYPE_XML.equals(infosetType)) {
+            logFailure(state, "'XSLT Stylesheet' requires an XML infoset, but {} is {}", new Object[]{ff, infosetType});
+            throw new DaffodilProcessingException("'XSLT Stylesheet' requires an XML infoset");
+        }
+
+        final boolean binary = BinaryJsonInfoset.isBinary(infosetType);
+        if (binary && INFOSET_FRAMING_NEWLINE.equals(framing)) {
+            logFailure(state, "'Infoset Framing' {} is not supported for {}, which is {}", new Object[]{framing, ff, infosetType});
+            throw new DaffodilProcessingException("'Infoset Framing' " + framing + " is not supported for " + infosetType);
+        }
+
+        boolean success = false;
+        try {
+            if (INFOSET_FRAMING_SINGLE.equals(framing)) {
+                InputStream infoset = in;
+                if (binary) {
+                    infoset = new BinaryJsonInfoset.Reader(infosetType, in).next();
+                    if (infoset == null) {
+                        logFailure(state, "{} does not contain a {} infoset", new Object[]{ff, infosetType});
+                        throw new DaffodilProcessingException("No infoset found");
+                    }
+                }
+                unparse(dp, ff, infosetType, infoset, stylesheet, wbc, state);
+            } else if (binary) {
+                // the binary parser finds the end of each infoset itself, so no splitter is needed
+                unparseAll(dp, ff, infosetType, new BinaryJsonInfoset.Reader(infosetType, in)::next, stylesheet, wbc, state);
+            } else {
+                // Each infoset is unparsed in turn to the same channel. Each needs its own
+                // InfosetInputter, but the splitter and channel are reused for all of them
+                final InfosetSplitter splitter = pooledSplitter.get();
+                splitter.reset(in, getBoundaryScanner(framing, infosetType));
+                try {
+                    unparseAll(dp, ff, infosetType, splitter::next, stylesheet, wbc, state);
+                } finally {
+                    splitter.clear();
+                }
+            }
+            wbc.unbind();
+            success = true;
+        } finally {
+            if (!success) {
+                wbc.discard();
+            }
+        }
+    }
+
+    private void unparseAll(final DataProcessor dp, final FlowFile ff, final String infosetType, final InfosetSource infosets, final Templates stylesheet, final ReusableOutputStream wbc, final ProcessingState state) throws IOException {
+        long count = 0;
+        InputStream infoset;
+        while ((infoset = infosets.next()) != null) {
+            count++;
+            try {
+                unparse(dp, ff, infosetType, infoset, stylesheet, wbc, state);
+            } catch (DaffodilProcessingException e) {
+                logFailure(state, "Failed to unparse infoset {} of {}", new Object[]{count, ff});
+                throw e;
+            }
+        }
+        state.putAttribute(INFOSET_COUNT_ATTRIBUTE, Long.toString(count));
+    }
+
+    private void unparse(final DataProcessor dp, final FlowFile ff, final String infosetType, final InputStream infoset, final Templates stylesheet, final ReusableOutputStream wbc, final ProcessingState state) throws DaffodilProcessingException {
+        if (stylesheet != null) {
+            unparseWithStylesheet(dp, ff, infoset, stylesheet, wbc, state);
+            return;
+        }
+        UnparseResult ur = getEngine().unparse(dp, getInfosetInputter(infosetType, infoset), (WritableByteChannel) wbc);
+        if (ur.isError()) {
+            logFailure(state, "Failed to unparse {}", new Object[]{ff});
+            reportDiagnostics(state, ur);
+            throw new DaffodilProcessingException("Failed to unparse");
+        }
+    }
+
+    /**
+     * Transform the infoset with the stylesheet, passing the resulting events
+     * directly to Daffodil's SAX unparse API so the transformed infoset is
+     * never written as XML text only to be parsed again for the unparse
+     */
+    private void unparseWithStylesheet(final DataProcessor dp, final FlowFile ff, final InputStream infoset, final Templates stylesheet, final ReusableOutputStream wbc, final ProcessingState state) throws DaffodilProcessingException {
+        final DaffodilUnparseContentHandler unparseHandler = getEngine().newContentHandler(dp, wbc);
+        final AbortableContentHandler handler = new AbortableContentHandler(unparseHandler);
+        boolean success = false;
+        try {
+            stylesheet.newTransformer().transform(new StreamSource(infoset), new SAXResult(handler));
+            success = true;
+        } catch (TransformerException e) {
+            // unparse errors surface as SAXExceptions thrown from the content handler
+            logFailure(state, "Failed to transform and unparse {}: {}", new Object[]{ff, e.getMessage()});
+            final UnparseResult ur = unparseHandler.getUnparseResult();
+            if (ur != null) {
+                reportDiagnostics(state, ur);
+            }
+            throw new DaffodilProcessingException("Failed to unparse", e);
+        } finally {
+            if (!success) {
+                handler.abort();
+            }
+        }
+
+        final UnparseResult ur = unparseHandler.getUnparseResult();
+        if (ur == null || ur.isError()) {
+            logFailure(state, "Failed to unparse {}", new Object[]{ff});
+            if (ur != null) {
+                reportDiagnostics(state, ur);
+            }
+            throw new DaffodilProcessingException("Failed to unparse");
+        }
+    }
+
+}
+
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import org.apache.daffodil.api.infoset.InfosetArray;
+import org.apache.daffodil.api.infoset.InfosetComplexElement;
+import org.apache.daffodil.api.infoset.InfosetElement;
+import org.apache.daffodil.api.infoset.InfosetOutputter;
+import org.apache.daffodil.api.infoset.InfosetSimpleElement;
+import org.apache.daffodil.api.metadata.PrimitiveType;
+
+/**
+ * Support for the CBOR and Smile infoset types, which are binary encodings
+ * of the same structure as Daffodil's JSON infoset: complex elements are
+ * objects, arrays are arrays, numeric and boolean values are native numbers
+ * and booleans, other simple values are strings, and nilled elements are
+ * null. Compared to JSON text they are smaller and faster to encode and
+ * decode, but they are otherwise interchangeable with the JSON infoset.
+ *
+ * Daffodil's JSON InfosetOutputter and InfosetInputter only support text, so
+ * parsing uses an Outputter that writes infoset events directly to a binary
+ * generator, and unparsing uses a Reader that transcodes each binary infoset
+ * to JSON text for Daffodil's JSON InfosetInputter as it is read, a buffer at
+ * a time, so the whole infoset is never held in memory. Parsing to a binary
+ * infoset is faster than parsing to JSON text, but unparsing one is slower
+ * than unparsing JSON text, since it is decoded, written as text, and parsed
+ * again by Daffodil.
+ */
+class BinaryJsonInfoset {
+
+    private static final JsonFactory CBOR_FACTORY = new CBORFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private static final JsonFactory SMILE_FACTORY = new SmileFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    // decimals are written as plain text, without an exponent, for Daffodil
+    private static final JsonFactory TEXT_FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .enable(JsonGenerator.Feature.WRITE_BIGDECIMAL_AS_PLAIN);
+
+    static boolean isBinary(String infosetType) {
+        return AbstractDaffodilProcessor.INFOSET_TYPE_CBOR.equals(infosetType)
+            || AbstractDaffodilProcessor.INFOSET_TYPE_SMILE.equals(infosetType);
+    }
+
+    static JsonFactory getFactory(String infosetType) {
+        switch (infosetType) {
+            case AbstractDaffodilProcessor.INFOSET_TYPE_CBOR: return CBOR_FACTORY;
+            case AbstractDaffodilProcessor.INFOSET_TYPE_SMILE: return SMILE_FACTORY;
+            default: throw new AssertionError("Unhandled binary infoset type: " + infosetType);
+        }
+    }
+
+    /**
+     * Writes infoset events to a binary generator in the same structure as
+     * Daffodil's JSON InfosetOutputter. Like the Daffodil outputters, this is
+     * owned by a single thread and reused via reset(). A new generator is
+     * created for each infoset, since Smile writes a header at the start of
+     * each generator's output.
+     */
+    static final class Outputter extends InfosetOutputter {
+
+        // state of each open complex element, for the array of its children
+        // that is currently open, if any
+        private static final byte NO_ARRAY = 0;
+        private static final byte ARRAY_PENDING = 1;
+        private static final byte ARRAY_OPEN = 2;
+        private static final byte NILLED = 3;
+
+        // how the values of a simple type are written. Like Daffodil's JSON
+        // InfosetOutputter, numbers and booleans are not strings
+        private static final byte STRING = 0;
+        private static final byte INTEGER = 1;
+        private static final byte DECIMAL = 2;
+        private static final byte FLOAT = 3;
+        private static final byte BOOLEAN = 4;
+
+        private final JsonFactory factory;
+        private final OutputStream os;
+        private JsonGenerator generator = null;
+        private byte[] states = new byte[16];
+        private int depth = 0;
+
+        // the value kind of each primitive type seen, which are singletons
+        private final IdentityHashMap<PrimitiveType, Byte> valueKinds = new IdentityHashMap<>();
+
+        Outputter(String infosetType, OutputStream os) {
+            this.factory = getFactory(infosetType);
+            this.os = os;
+        }
+
+        @Override
+        public void reset() {
+            generator = null;
+            depth = 0;
+            states[0] = NO_ARRAY;
+        }
+
+        @Override
+        public void startDocument() throws Exception {
+            generator = factory.createGenerator(os);
+            generator.writeStartObject();
+        }
+
+        @Override
+        public void endDocument() throws Exception {
+            generator.writeEndObject();
+            generator.close();
+            generator = null;
+        }
+
+        /**
+         * Elements in an array are written as array items without a field
+         * name. The array itself is only started by its first element, since
+         * that is where the name comes from.
+         */
+        private void startElement(InfosetElement element) throws IOException {
+            switch (states[depth]) {
+                case NO_ARRAY:
+                    generator.writeFieldName(element.metadata().name());
+                    break;
+                case ARRAY_PENDING:
+                    generator.writeFieldName(element.metadata().name());
+                    generator.writeStartArray();
+                    states[depth] = ARRAY_OPEN;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void startSimple(InfosetSimpleElement simple) throws Exception {
+            startElement(simple);
+            if (simple.isNilled()) {
+                generator.writeNull();
+            } else {
+                writeValue(simple);
+            }
+        }
+
+        private static byte valueKind(String primitiveType) {
+            switch (primitiveType.toLowerCase(Locale.ROOT)) {
+                case "byte":
+                case "short":
+                case "int":
+                case "long":
+                case "integer":
+                case "nonnegativeinteger":
+                case "unsignedbyte":
+                case "unsignedshort":
+                case "unsignedint":
+                case "unsignedlong":
+                    return INTEGER;
+                case "decimal":
+                    return DECIMAL;
+                case "float":
+                case "double":
+                    return FLOAT;
+                case "boolean":
+                    return BOOLEAN;
+                default:
+                    return STRING;
+            }
+        }
+
+        /**
+         * Values are written from their canonical text, the same text the JSON
+         * InfosetOutputter writes. Values that are not JSON numbers, like INF
+         * and NaN, are strings as they are in the JSON infoset.
+         */
+        private void writeValue(InfosetSimpleElement simple) throws IOException {
+            final PrimitiveType primitiveType = simple.metadata().primitiveType();
+            Byte kind = valueKinds.get(primitiveType);
+            if (kind == null) {
+                kind = valueKind(primitiveType.name());
+                valueKinds.put(primitiveType, kind);
+            }
+            final String text = simple.getText();
+            try {
+                switch (kind) {
+                    case INTEGER:
+                        if (text.length() < 19) {
+                            generator.writeNumber(Long.parseLong(text));
+                        } else {
+                            generator.writeNumber(new BigInteger(text));
+                        }
+                        return;
+                    case DECIMAL:
+                        generator.writeNumber(new BigDecimal(text));
+                        return;
+                    case FLOAT:
+                        final double d = Double.parseDouble(text);
+                        if (Double.isFinite(d)) {
+                            generator.writeNumber(d);
+                            return;
+                        }
+                        break;
+                    case BOOLEAN:
+                        generator.writeBoolean(Boolean.parseBoolean(text));
+                        return;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                // not a JSON number, written as a string
+            }
+            generator.writeString(text);
+        }
+
+        @Override
+        public void endSimple(InfosetSimpleElement simple) { }
+
+        @Override
+        public void startComplex(InfosetComplexElement complex) throws Exception {
+            startElement(complex);
+            depth++;
+            if (depth == states.length) {
+                states = Arrays.copyOf(states, states.length * 2);
+            }
+            if (complex.isNilled()) {
+                generator.writeNull();
+                states[depth] = NILLED;
+            } else {
+                generator.writeStartObject();
+                states[depth] = NO_ARRAY;
+            }
+        }
+
+        @Override
+        public void endComplex(InfosetComplexElement complex) throws Exception {
+            if (states[depth] != NILLED) {
+                generator.writeEndObject();
+            }
+            depth--;
+        }
+
+        @Override
+        public void startArray(InfosetArray array) {
+            states[depth] = ARRAY_PENDING;
+        }
+
+        @Override
+        public void endArray(InfosetArray array) throws Exception {
+            if (states[depth] == ARRAY_OPEN) {
+                generator.writeEndArray();
+            }
+            states[depth] = NO_ARRAY;
+        }
+    }
+
+    /**
+     * Reads a sequence of binary infosets from a stream, returning each one
+     * as a stream of JSON text. A binary encoding has no separators to scan
+     * for like the InfosetSplitter does, but the parser knows where each
+     * value ends, so concatenated infosets are read from the same parser.
+     * Numbers and booleans are copied as unquoted JSON tokens, as Daffodil's
+     * JSON InfosetOutputter writes them.
+     */
+    static final class Reader {
+        private final JsonParser parser;
+        private final ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream();
+        private TextInfoset current = null;
+
+        Reader(String infosetType, InputStream in) throws IOException {
+            this.parser = getFactory(infosetType).createParser(in);
+        }
+
+        /**
+         * Returns a stream of the next infoset as JSON text, or null if there
+         * are no more. Any part of the previous infoset that was not read is
+         * skipped.
+         */
+        InputStream next() throws IOException {
+            if (current != null) {
+                current.skipRemaining();
+                current = null;
+            }
+            if (parser.nextToken() == null) {
+                return null;
+            }
+            current = new TextInfoset();
+            return current;
+        }
+
+        /**
+         * Copies parser events to a JSON text generator one buffer at a time,
+         * starting with the current token, until the value at the root ends
+         */
+        private class TextInfoset extends InputStream {
+            private final JsonGenerator generator;
+            private boolean started = false;
+            private boolean done = false;
+            private int pos = 0;
+
+            TextInfoset() throws IOException {
+                buffer.reset();
+                generator = TEXT_FACTORY.createGenerator(buffer, JsonEncoding.UTF8);
+            }
+
+            /**
+             * Refill the buffer once all buffered bytes have been read.
+             * The generator only writes to the buffer when its own buffer is
+             * full or it is closed, so it is not flushed per token. Returns
+             * false at the end of the infoset.
+             */
+            private boolean fill() throws IOException {
+                if (pos < buffer.size()) {
+                    return true;
+                }
+                buffer.reset();
+                pos = 0;
+                while (!done && buffer.size() < ReusableOutputStream.DEFAULT_BUFFER_SIZE) {
+                    final JsonToken token = started ? parser.nextToken() : parser.currentToken();
+                    started = true;
+                    if (token == null) {
+                        // truncated, Daffodil reports the incomplete JSON
+                        done = true;
+                        break;
+                    }
+                    generator.copyCurrentEvent(parser);
+                    if (parser.getParsingContext().inRoot()) {
+                        done = true;
+                    }
+                }
+                if (done) {
+                    generator.close();
+                }
+                return pos < buffer.size();
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!fill()) {
+                    return -1;
+                }
+                return buffer.buf()[pos++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                final int n = Math.min(len, buffer.size() - pos);
+                System.arraycopy(buffer.buf(), pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return buffer.size() - pos;
+            }
+
+            void skipRemaining() throws IOException {
+                while (fill()) {
+                    pos = buffer.size();
+                }
+            }
+
+            /**
+             * InfosetInputters may close their stream, which must not close
+             * the parser shared by all infosets
+             */
+            @Override
+            public void close() { }
+        }
+    }
+
+    /**
+     * Allows reading the buffered bytes without copying them
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(ReusableOutputStream.DEFAULT_BUFFER_SIZE);
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+    }
+}
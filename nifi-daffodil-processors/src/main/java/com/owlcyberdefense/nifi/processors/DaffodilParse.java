@@ -16,40 +16,33 @@
 
 package com.owlcyberdefense.nifi.processors;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-
 import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.RequiresInstanceClassLoading;
 import org.apache.nifi.annotation.behavior.SideEffectFree;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.expression.ExpressionLanguageScope;
-import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.annotation.behavior.RequiresInstanceClassLoading;
-
-import org.apache.daffodil.api.Daffodil;
-import org.apache.daffodil.api.DataLocation;
-import org.apache.daffodil.api.DataProcessor;
-import org.apache.daffodil.api.ParseResult;
-import org.apache.daffodil.api.InputSourceDataInputStream;
-import org.apache.daffodil.api.infoset.InfosetOutputter;
-
 
 @SideEffectFree
 @SupportsBatching
 @InputRequirement(Requirement.INPUT_REQUIRED)
-@Tags({"xml", "json", "daffodil", "dfdl", "schema", "xsd"})
-@CapabilityDescription("Use Daffodil and a user-specified DFDL schema to transform data to an infoset, represented by either XML or JSON.")
-@WritesAttribute(attribute = "mime.type", description = "Sets the mime type to application/json or application/xml based on the infoset type.")
+@Tags({"xml", "json", "cbor", "smile", "daffodil", "dfdl", "schema", "xsd"})
+@SeeAlso(DaffodilParseNoPlugins.class)
+@CapabilityDescription("Use Daffodil and a user-specified DFDL schema to transform data to an infoset, represented by XML, JSON, or a binary JSON encoding (CBOR or Smile).")
+@WritesAttributes({
+    @WritesAttribute(attribute = "mime.type", description = "Sets the mime type to application/xml, application/json, application/cbor, or application/x-jackson-smile based on the infoset type, or to the output media type or method of the 'XSLT Stylesheet' if it is set."),
+    @WritesAttribute(attribute = "daffodil.validation.mode", description = "Set to full if the FlowFile was selected for sampled full validation."),
+    @WritesAttribute(attribute = "daffodil.validation.valid", description = "If the FlowFile was selected for sampled full validation, true if it is valid, false otherwise."),
+    @WritesAttribute(attribute = "daffodil.validation.errors", description = "If the FlowFile was selected for sampled full validation, the number of validation errors found."),
+    @WritesAttribute(attribute = "daffodil.infoset.statistics", description = "If the FlowFile was sampled for infoset statistics, the totals and most frequent elements over all sampled FlowFiles for the same DFDL schema."),
+    @WritesAttribute(attribute = "daffodil.diagnostics", description = "If the FlowFile is routed to failure, the Daffodil diagnostics describing the failure, up to 'Diagnostics Attribute Max Length' characters.")
+})
 @DynamicProperty(
     name = "Name of external variable defined in a DFDL schema",
     value = "Value to set for the DFDL external variable. May be an expression. The DFDL variable is not set if the value expression evaluates to an empty string.",
@@ -57,46 +50,5 @@ import org.apache.daffodil.api.infoset.InfosetOutputter;
     expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES
 )
 @RequiresInstanceClassLoading
-public class DaffodilParse extends AbstractDaffodilProcessor {
-
-    private InfosetOutputter getInfosetOutputter(String infosetType, OutputStream os) {
-        switch (infosetType) {
-            case INFOSET_TYPE_XML: return Daffodil.newXMLTextInfosetOutputter(os, false);
-            case INFOSET_TYPE_JSON: return Daffodil.newJsonInfosetOutputter(os, false);
-            default: throw new AssertionError("Unhandled infoset type: " + infosetType);
-        }
-    }
-
-    @Override
-    protected boolean isUnparse() { return false; }
-
-    @Override
-    protected String getOutputMimeType(String infosetType) {
-        switch (infosetType) {
-            case INFOSET_TYPE_XML: return XML_MIME_TYPE;
-            case INFOSET_TYPE_JSON: return JSON_MIME_TYPE;
-            default: throw new AssertionError("Unhandled infoset type: " + infosetType);
-        }
-    }
-
-    @Override
-    protected void processWithDaffodil(final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType) throws IOException {
-        InputSourceDataInputStream input = Daffodil.newInputSourceDataInputStream(in);
-        InfosetOutputter outputter = getInfosetOutputter(infosetType, out);
-        ParseResult pr = dp.parse(input, outputter);
-        if (pr.isError()) {
-            getLogger().error("Failed to parse {}", new Object[]{ff});
-            logDiagnostics(getLogger(), pr);
-            throw new DaffodilProcessingException("Failed to parse");
-        }
-        DataLocation loc = pr.location();
-        long bitsRead = loc.bitPos1b() - 1;
-        long expectedBits = ff.getSize() * 8;
-        if (expectedBits != bitsRead) {
-            getLogger().error("Left over data. Consumed {} bit(s) with {} bit(s) remaining when parsing {}", new Object[]{bitsRead, expectedBits - bitsRead, ff});
-            throw new DaffodilProcessingException("Left over data found");
-        }
-        out.flush();
-    }
-
+public class DaffodilParse extends AbstractDaffodilParse {
 }
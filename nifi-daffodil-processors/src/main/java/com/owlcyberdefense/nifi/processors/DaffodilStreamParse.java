@@ -0,0 +1,605 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLServerSocket;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.RequiresInstanceClassLoading;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.annotation.lifecycle.OnUnscheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.ssl.SSLContextService;
+import org.apache.nifi.stream.io.NonCloseableOutputStream;
+import org.apache.nifi.util.StopWatch;
+
+import com.owlcyberdefense.daffodil.engine.DaffodilEngine;
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.InputSourceDataInputStream;
+import org.apache.daffodil.api.ParseResult;
+import org.apache.daffodil.api.infoset.InfosetOutputter;
+
+@TriggerSerially
+@InputRequirement(Requirement.INPUT_FORBIDDEN)
+@Stateful(scopes = Scope.LOCAL, description = "When 'Stream Source' is 'file', the path of the file, the key identifying the file it named, and the offset just past the last message parsed from it, so that a restarted processor continues where it stopped.")
+@Tags({"xml", "json", "cbor", "smile", "daffodil", "dfdl", "schema", "xsd", "stream", "tcp", "listen", "tail"})
+@SeeAlso(DaffodilParse.class)
+@CapabilityDescription("Use Daffodil and a user-specified DFDL schema to parse a continuous stream of messages received on a TCP port or appended to a local file. Each message is parsed as it arrives, and the XML, JSON, CBOR, or Smile infosets of consecutive messages are written in batches to new FlowFiles.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "mime.type", description = "Sets the mime type to application/json, application/xml, application/cbor, or application/x-jackson-smile based on the infoset type."),
+    @WritesAttribute(attribute = "daffodil.infoset.count", description = "The number of infosets in a FlowFile routed to success."),
+    @WritesAttribute(attribute = "daffodil.stream.source", description = "The TCP address of the sender or the URI of the file the messages were read from."),
+    @WritesAttribute(attribute = "daffodil.stream.offset", description = "The byte offset in the connection or file of the first message in the FlowFile, or of the message that failed to parse."),
+    @WritesAttribute(attribute = "daffodil.diagnostics", description = "If a message fails to parse, the Daffodil diagnostics describing the failure, up to 'Diagnostics Attribute Max Length' characters.")
+})
+@DynamicProperty(
+    name = "Name of external variable defined in a DFDL schema",
+    value = "Value to set for the DFDL external variable. May be an expression, but there are no FlowFile attributes to reference. The DFDL variable is not set if the value expression evaluates to an empty string.",
+    description = "Defines an external variable to be used when parsing",
+    expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES
+)
+@RequiresInstanceClassLoading
+public class DaffodilStreamParse extends AbstractDaffodilProcessor {
+
+    static final String STREAM_SOURCE_TCP = "tcp";
+    static final String STREAM_SOURCE_FILE = "file";
+
+    public static final PropertyDescriptor STREAM_SOURCE = new PropertyDescriptor.Builder()
+            .name("stream-source")
+            .displayName("Stream Source")
+            .description("Where the stream of messages comes from. With 'tcp', the processor listens on 'Listen Port' and parses everything sent on a connection until the sender closes it. One connection is read at a time. With 'file', the processor reads 'File to Tail' and parses each message as it is appended to the file.")
+            .required(true)
+            .defaultValue(STREAM_SOURCE_TCP)
+            .allowableValues(STREAM_SOURCE_TCP, STREAM_SOURCE_FILE)
+            .build();
+
+    public static final PropertyDescriptor LISTEN_PORT = new PropertyDescriptor.Builder()
+            .name("listen-port")
+            .displayName("Listen Port")
+            .description("The TCP port to listen on for connections. Required if 'Stream Source' is 'tcp'.")
+            .required(false)
+            .addValidator(StandardValidators.PORT_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LISTEN_ADDRESS = new PropertyDescriptor.Builder()
+            .name("listen-address")
+            .displayName("Listen Address")
+            .description("The local address or host name of the network interface to listen on, such as 127.0.0.1 to only accept connections from the same host. If not set, connections are accepted on all network interfaces. Only used if 'Stream Source' is 'tcp'.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SSL_CONTEXT_SERVICE = new PropertyDescriptor.Builder()
+            .name("ssl-context-service")
+            .displayName("SSL Context Service")
+            .description("If set, connections must use TLS, with the keystore and truststore of this service. Only used if 'Stream Source' is 'tcp'.")
+            .required(false)
+            .identifiesControllerService(SSLContextService.class)
+            .build();
+
+    static final String CLIENT_AUTH_REQUIRED = "required";
+    static final String CLIENT_AUTH_WANT = "want";
+    static final String CLIENT_AUTH_NONE = "none";
+
+    public static final PropertyDescriptor CLIENT_AUTH = new PropertyDescriptor.Builder()
+            .name("client-auth")
+            .displayName("Client Auth")
+            .description("Whether a client must present a certificate trusted by the truststore of the 'SSL Context Service'. With 'want', a client without a certificate is still accepted. Only used if 'SSL Context Service' is set.")
+            .required(true)
+            .defaultValue(CLIENT_AUTH_REQUIRED)
+            .allowableValues(CLIENT_AUTH_REQUIRED, CLIENT_AUTH_WANT, CLIENT_AUTH_NONE)
+            .build();
+
+    public static final PropertyDescriptor FILE_TO_TAIL = new PropertyDescriptor.Builder()
+            .name("file-to-tail")
+            .displayName("File to Tail")
+            .description("Path of the local file to read messages from as they are appended. The file does not need to exist yet. If the file is truncated, or renamed or deleted and a new file created in its place, the new content is read from the start once everything in the old file has been parsed. Required if 'Stream Source' is 'file'.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("batch-size")
+            .displayName("Batch Size")
+            .description("The maximum number of infosets written to a single FlowFile.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_DURATION = new PropertyDescriptor.Builder()
+            .name("batch-duration")
+            .displayName("Batch Duration")
+            .description("The maximum time to wait for more messages before writing the infosets parsed so far to a FlowFile, even if there are fewer than 'Batch Size'. A message that has not completely arrived by then is parsed again from its start by the next batch.")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final String STREAM_SOURCE_ATTRIBUTE = "daffodil.stream.source";
+    static final String STREAM_OFFSET_ATTRIBUTE = "daffodil.stream.offset";
+    static final String INFOSET_COUNT_ATTRIBUTE = "daffodil.infoset.count";
+
+    static final String STATE_FILE = "file";
+    static final String STATE_POSITION = "position";
+    static final String STATE_FILE_KEY = "file.key";
+
+    /**
+     * How often a tailed file is checked for appended data
+     */
+    static final long FILE_POLL_MILLIS = 100;
+
+    // configuration, set when scheduled
+    private String streamSource = null;
+    private File fileToTail = null;
+    private int batchSize = 1000;
+    private long batchNanos = 0;
+    private String infosetType = null;
+    private String outputCompression = COMPRESSION_NONE;
+
+    // the open stream, only used by the single trigger thread except to be closed when stopping
+    private volatile ServerSocket serverSocket = null;
+    private volatile StreamParseInput input = null;
+    private InputSourceDataInputStream isdis = null;
+    private long inputStart = 0;
+    private long consumed = 0;
+    private DataProcessor dp = null;
+    private String dfdlSchema = null;
+
+    /**
+     * Each message is parsed into this buffer, so only messages that parse
+     * successfully are written to the batch
+     */
+    private final ByteArrayOutputStream messageBuffer = new ByteArrayOutputStream();
+    private InfosetOutputter outputter = null;
+
+    /**
+     * What happened while parsing a batch of messages
+     */
+    private static class Batch {
+        int count = 0;
+        long firstOffset = -1;
+        boolean endOfStream = false;
+
+        /**
+         * The state of a message that failed to parse, or null
+         */
+        ProcessingState failure = null;
+        long failureOffset = -1;
+
+        /**
+         * The infoset of a message that only failed validation, in which case
+         * the rest of the stream can still be parsed
+         */
+        byte[] failureInfoset = null;
+    }
+
+    @Override
+    protected boolean isUnparse() { return false; }
+
+    @Override
+    protected boolean hasInputFlowFiles() { return false; }
+
+    @Override
+    protected List<PropertyDescriptor> getAdditionalProperties() {
+        return Arrays.asList(STREAM_SOURCE, LISTEN_PORT, LISTEN_ADDRESS, SSL_CONTEXT_SERVICE, CLIENT_AUTH, FILE_TO_TAIL, BATCH_SIZE, BATCH_DURATION);
+    }
+
+    @Override
+    protected String getOutputMimeType(String infosetType) {
+        return AbstractDaffodilParse.getInfosetMimeType(infosetType);
+    }
+
+    /**
+     * Messages come from the stream rather than FlowFiles, see onTrigger
+     */
+    @Override
+    protected void processWithDaffodil(final ProcessContext context, final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType, ProcessingState state) throws IOException {
+        throw new AssertionError("DaffodilStreamParse does not process FlowFiles");
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        final String source = validationContext.getProperty(STREAM_SOURCE).getValue();
+        if (STREAM_SOURCE_TCP.equals(source) && !validationContext.getProperty(LISTEN_PORT).isSet()) {
+            results.add(new ValidationResult.Builder()
+                .subject(LISTEN_PORT.getDisplayName())
+                .valid(false)
+                .explanation("'Listen Port' is required when 'Stream Source' is 'tcp'")
+                .build());
+        }
+        if (STREAM_SOURCE_FILE.equals(source) && !validationContext.getProperty(FILE_TO_TAIL).isSet()) {
+            results.add(new ValidationResult.Builder()
+                .subject(FILE_TO_TAIL.getDisplayName())
+                .valid(false)
+                .explanation("'File to Tail' is required when 'Stream Source' is 'file'")
+                .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void openStreamSource(final ProcessContext context) throws IOException {
+        streamSource = context.getProperty(STREAM_SOURCE).getValue();
+        batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        batchNanos = context.getProperty(BATCH_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+        infosetType = context.getProperty(INFOSET_TYPE).getValue();
+        outputCompression = context.getProperty(OUTPUT_COMPRESSION).getValue();
+        outputter = null;
+        dp = null;
+        dfdlSchema = context.getProperty(DFDL_SCHEMA_FILE).evaluateAttributeExpressions().getValue();
+
+        if (STREAM_SOURCE_TCP.equals(streamSource)) {
+            fileToTail = null;
+            final ServerSocket server = newServerSocket(context);
+            server.setReuseAddress(true);
+            final int port = context.getProperty(LISTEN_PORT).asInteger();
+            final String address = context.getProperty(LISTEN_ADDRESS).getValue();
+            server.bind(address == null ? new InetSocketAddress(port) : new InetSocketAddress(address, port));
+            serverSocket = server;
+        } else {
+            fileToTail = new File(context.getProperty(FILE_TO_TAIL).getValue());
+        }
+    }
+
+    /**
+     * Returns an unbound ServerSocket, which accepts TLS connections if
+     * 'SSL Context Service' is set
+     */
+    private static ServerSocket newServerSocket(final ProcessContext context) throws IOException {
+        final SSLContextService sslService = context.getProperty(SSL_CONTEXT_SERVICE).asControllerService(SSLContextService.class);
+        if (sslService == null) {
+            return new ServerSocket();
+        }
+        final SSLServerSocket server = (SSLServerSocket) sslService.createContext().getServerSocketFactory().createServerSocket();
+        switch (context.getProperty(CLIENT_AUTH).getValue()) {
+            case CLIENT_AUTH_REQUIRED: server.setNeedClientAuth(true); break;
+            case CLIENT_AUTH_WANT: server.setWantClientAuth(true); break;
+            case CLIENT_AUTH_NONE: break;
+            default: throw new AssertionError("client auth was not one of 'required', 'want', or 'none'");
+        }
+        return server;
+    }
+
+    /**
+     * Closing the sources also stops a trigger that is waiting for data
+     */
+    @OnUnscheduled
+    @OnStopped
+    public void closeStreamSource() {
+        closeInput();
+        final ServerSocket server = serverSocket;
+        serverSocket = null;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                getLogger().warn("Failed to close server socket: {}", new Object[]{e.getMessage()});
+            }
+        }
+    }
+
+    private void closeInput() {
+        final StreamParseInput in = input;
+        input = null;
+        isdis = null;
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                getLogger().warn("Failed to close {}: {}", new Object[]{in.getTransitUri(), e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Returns the open stream, opening it if needed by accepting a connection
+     * or opening the file at the position saved in state. Returns null if no
+     * connection arrived within 'Batch Duration' or the file does not exist.
+     */
+    private StreamParseInput openInput(final ProcessContext context) throws IOException {
+        if (input != null) {
+            return input;
+        }
+        final StreamParseInput opened;
+        if (STREAM_SOURCE_TCP.equals(streamSource)) {
+            final ServerSocket server = serverSocket;
+            if (server == null) {
+                return null;
+            }
+            server.setSoTimeout((int) Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(batchNanos), Integer.MAX_VALUE)));
+            try {
+                opened = new StreamParseInput.Connection(server.accept());
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            inputStart = 0;
+        } else {
+            if (!fileToTail.isFile()) {
+                return null;
+            }
+            final StateMap state = context.getStateManager().getState(Scope.LOCAL);
+            final String position = state.get(STATE_POSITION);
+            long start = 0;
+            if (fileToTail.getPath().equals(state.get(STATE_FILE)) && position != null) {
+                start = Long.parseLong(position);
+                final String savedKey = state.get(STATE_FILE_KEY);
+                final Object fileKey = StreamParseInput.TailedFile.getFileKey(fileToTail);
+                if (start > fileToTail.length() || (savedKey != null && fileKey != null && !savedKey.equals(fileKey.toString()))) {
+                    // truncated or replaced while stopped
+                    start = 0;
+                }
+            }
+            opened = new StreamParseInput.TailedFile(fileToTail, start, FILE_POLL_MILLIS);
+            inputStart = start;
+        }
+        getLogger().debug("Opened stream from {}", new Object[]{opened.getTransitUri()});
+        input = opened;
+        isdis = Daffodil.newInputSourceDataInputStream(opened);
+        consumed = 0;
+        return opened;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) {
+        if (dp == null) {
+            try {
+                dp = getDataProcessor(context, null, dfdlSchema, false);
+            } catch (ProcessException e) {
+                getLogger().error("Failed to compile DFDL schema {}: {}", new Object[]{dfdlSchema, e.getMessage()});
+                context.yield();
+                return;
+            }
+        }
+
+        final StreamParseInput in;
+        try {
+            in = openInput(context);
+        } catch (IOException e) {
+            getLogger().error("Failed to open stream source: {}", new Object[]{e.getMessage()});
+            context.yield();
+            return;
+        }
+        if (in == null) {
+            if (STREAM_SOURCE_FILE.equals(streamSource)) {
+                context.yield();
+            }
+            return;
+        }
+
+        final StopWatch stopWatch = new StopWatch(true);
+        final Batch batch = new Batch();
+        FlowFile output = session.create();
+        try {
+            output = session.write(output, out -> {
+                // the compressor is closed even if parsing fails, but NiFi's stream is not
+                try (OutputStream dataOut = compress(new NonCloseableOutputStream(out), outputCompression)) {
+                    parseBatch(in, dataOut, batch);
+                }
+            });
+        } catch (ProcessException e) {
+            getLogger().error("Failed to read stream from {}: {}", new Object[]{in.getTransitUri(), e.getMessage()});
+            session.remove(output);
+            closeInput();
+            return;
+        }
+
+        final String transitUri = in.getTransitUri();
+        if (batch.count > 0) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(CoreAttributes.MIME_TYPE.key(), outputCompression.equals(COMPRESSION_NONE) ? getOutputMimeType(infosetType) : getCompressionMimeType(outputCompression));
+            attributes.put(INFOSET_COUNT_ATTRIBUTE, Integer.toString(batch.count));
+            attributes.put(STREAM_SOURCE_ATTRIBUTE, transitUri);
+            attributes.put(STREAM_OFFSET_ATTRIBUTE, Long.toString(batch.firstOffset));
+            output = session.putAllAttributes(output, attributes);
+            session.getProvenanceReporter().receive(output, transitUri, stopWatch.getElapsed(TimeUnit.MILLISECONDS));
+            session.transfer(output, REL_SUCCESS);
+            session.adjustCounter("Stream Messages Parsed", batch.count, false);
+        } else {
+            session.remove(output);
+        }
+
+        if (batch.failure != null) {
+            FlowFile failure = session.create();
+            if (batch.failureInfoset != null) {
+                final byte[] infoset = batch.failureInfoset;
+                failure = session.write(failure, out -> out.write(infoset));
+                failure = session.putAttribute(failure, CoreAttributes.MIME_TYPE.key(), getOutputMimeType(infosetType));
+            }
+            failure = session.putAttribute(failure, STREAM_SOURCE_ATTRIBUTE, transitUri);
+            failure = session.putAttribute(failure, STREAM_OFFSET_ATTRIBUTE, Long.toString(batch.failureOffset));
+            if (batch.failure.diagnostics != null) {
+                failure = session.putAttribute(failure, DIAGNOSTICS_ATTRIBUTE, batch.failure.diagnostics.toString());
+            }
+            session.getProvenanceReporter().receive(failure, transitUri);
+            session.transfer(failure, REL_FAILURE);
+            session.adjustCounter("Stream Messages Failed", 1, false);
+        }
+
+        long position = inputStart + consumed;
+        if (in.isClosed()) {
+            // stopped while waiting for data, a partially read message is parsed again when restarted
+        } else if (batch.failure != null && batch.failureInfoset == null) {
+            // Daffodil cannot tell where the next message starts after a failed parse, so
+            // drop the connection, or skip whatever has been appended to the file so far
+            if (in instanceof StreamParseInput.TailedFile) {
+                try {
+                    position = ((StreamParseInput.TailedFile) in).length();
+                } catch (IOException e) {
+                    getLogger().warn("Failed to get the length of {}: {}", new Object[]{transitUri, e.getMessage()});
+                }
+            }
+            closeInput();
+        } else if (batch.endOfStream) {
+            getLogger().debug("End of stream from {}", new Object[]{transitUri});
+            closeInput();
+        }
+        if (in instanceof StreamParseInput.TailedFile) {
+            final StreamParseInput.TailedFile tailed = (StreamParseInput.TailedFile) in;
+            Object fileKey = tailed.getFileKey();
+            if (tailed.isReplaced()) {
+                getLogger().info("{} was truncated or replaced, reading it again from the start", new Object[]{transitUri});
+                position = 0;
+                fileKey = null;
+            }
+            // the position is saved with the session, so it is only kept if the FlowFiles
+            // are committed, and a rollback parses the same messages again after a restart
+            saveFilePosition(session, position, fileKey);
+        }
+    }
+
+    /**
+     * Parse messages until there are 'Batch Size' of them, no message arrives
+     * before 'Batch Duration' has elapsed, the stream ends, or a message fails
+     */
+    private void parseBatch(final StreamParseInput in, final OutputStream out, final Batch batch) throws IOException {
+        final long deadline = System.nanoTime() + batchNanos;
+        in.setDeadline(deadline);
+        if (outputter == null) {
+            outputter = AbstractDaffodilParse.getInfosetOutputter(infosetType, messageBuffer);
+        }
+        while (batch.count < batchSize) {
+            // Daffodil may have already read the start of the next message, in which case
+            // there is nothing to wait for
+            if (in.getDelivered() <= consumed) {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    break;
+                }
+                if (!in.awaitData(remaining)) {
+                    batch.endOfStream = in.isEnded();
+                    break;
+                }
+            }
+
+            final long offset = inputStart + consumed;
+            messageBuffer.reset();
+            outputter.reset();
+            final ParseResult pr = getEngine().parse(dp, isdis, outputter);
+            if (in.isTimedOut()) {
+                // The rest of the message did not arrive before 'Batch Duration' ended, and Daffodil
+                // saw the end of the data. The message is parsed again from its start by the next
+                // trigger, so the messages already parsed are written now
+                outputter = null;
+                rewindInput(in);
+                break;
+            }
+            if (!pr.isProcessingError() && DaffodilEngine.getBitsConsumed(pr) % 8 != 0) {
+                // The next message would start in the middle of a byte, which is not a position that
+                // can be saved or reported, so this is treated like a failed parse
+                final ProcessingState state = new ProcessingState(dfdlSchema, false, false);
+                logFailure(state, "Message at offset {} from {} did not end on a byte boundary, consumed {} bit(s)",
+                    new Object[]{offset, in.getTransitUri(), DaffodilEngine.getBitsConsumed(pr) - consumed * 8});
+                batch.failure = state;
+                batch.failureOffset = offset;
+                break;
+            }
+            if (pr.isError()) {
+                // the outputter may be left with partial state
+                outputter = null;
+                if (in.isClosed()) {
+                    break;
+                }
+                final ProcessingState state = new ProcessingState(dfdlSchema, false, false);
+                logFailure(state, "Failed to parse message at offset {} from {}", new Object[]{offset, in.getTransitUri()});
+                reportDiagnostics(state, pr);
+                batch.failure = state;
+                batch.failureOffset = offset;
+                if (!pr.isProcessingError()) {
+                    // only invalid, the message was still fully parsed
+                    batch.failureInfoset = messageBuffer.toByteArray();
+                    consumed = DaffodilEngine.getBitsConsumed(pr) / 8;
+                    in.release(consumed);
+                }
+                break;
+            }
+            consumed = DaffodilEngine.getBitsConsumed(pr) / 8;
+            in.release(consumed);
+            if (batch.count == 0) {
+                batch.firstOffset = offset;
+            }
+            messageBuffer.writeTo(out);
+            batch.count++;
+        }
+        out.flush();
+    }
+
+    /**
+     * Start a new InputSourceDataInputStream at the start of the message
+     * being parsed, since Daffodil does not read from a stream again once it
+     * has returned the end of the data
+     */
+    private void rewindInput(final StreamParseInput in) {
+        in.rewind(consumed);
+        inputStart += consumed;
+        consumed = 0;
+        isdis = Daffodil.newInputSourceDataInputStream(in);
+    }
+
+    private void saveFilePosition(final ProcessSession session, final long position, final Object fileKey) {
+        final Map<String, String> state = new HashMap<>();
+        state.put(STATE_FILE, fileToTail.getPath());
+        state.put(STATE_POSITION, Long.toString(position));
+        if (fileKey != null) {
+            state.put(STATE_FILE_KEY, fileKey.toString());
+        }
+        try {
+            session.setState(state, Scope.LOCAL);
+        } catch (IOException e) {
+            getLogger().warn("Failed to save the position in {}, messages may be parsed again after a restart: {}", new Object[]{fileToTail, e.getMessage()});
+        }
+    }
+}
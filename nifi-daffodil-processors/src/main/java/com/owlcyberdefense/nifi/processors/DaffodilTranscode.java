@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.RequiresInstanceClassLoading;
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.owlcyberdefense.daffodil.engine.CompilationParams;
+import com.owlcyberdefense.daffodil.engine.DaffodilCompileException;
+import org.apache.daffodil.api.DaffodilUnparseContentHandler;
+import org.apache.daffodil.api.DataProcessor;
+import org.apache.daffodil.api.ParseResult;
+import org.apache.daffodil.api.UnparseResult;
+
+
+@SideEffectFree
+@SupportsBatching
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@Tags({"xml", "daffodil", "dfdl", "schema", "xsd", "transcode", "convert"})
+@CapabilityDescription("Use Daffodil to parse data with one DFDL schema and unparse the resulting infoset with another, converting between two data formats without writing an intermediate infoset.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "mime.type", description = "If the FlowFile is successfully transcoded, this attribute is removed, as the MIME Type is no longer known."),
+    @WritesAttribute(attribute = "daffodil.diagnostics", description = "If the FlowFile is routed to failure, the Daffodil diagnostics describing the failure, up to 'Diagnostics Attribute Max Length' characters.")
+})
+@DynamicProperty(
+    name = "Name of external variable defined in the source DFDL schema",
+    value = "Value to set for the DFDL external variable. May be an expression. The DFDL variable is not set if the value expression evaluates to an empty string.",
+    description = "Defines an external variable to be used when parsing with the source DFDL schema",
+    expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES
+)
+@RequiresInstanceClassLoading
+public class DaffodilTranscode extends AbstractDaffodilProcessor {
+
+    public static final PropertyDescriptor TARGET_DFDL_SCHEMA_FILE = new PropertyDescriptor.Builder()
+            .name("target-dfdl-schema-file")
+            .displayName("Target DFDL Schema File")
+            .description("Path to the DFDL schema file or resource (see 'Plugins and Schemas') used to unparse the infoset created by parsing with the 'DFDL Schema File'.")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TARGET_PRE_COMPILED_SCHEMA = new PropertyDescriptor.Builder()
+            .name("target-pre-compiled-schema")
+            .displayName("Target Pre-compiled Schema")
+            .description("Specify whether the 'Target DFDL Schema File' property is a pre-compiled parser that can be reloaded or if it is a DFDL schema that needs to be compiled. Set to true if it is pre-compiled.")
+            .required(true)
+            .defaultValue("false")
+            .allowableValues("true", "false")
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TRANSFORM_CLASS = new PropertyDescriptor.Builder()
+            .name("transform-class")
+            .displayName("Transform Class")
+            .description("Optional fully qualified name of a class that extends org.xml.sax.helpers.XMLFilterImpl, found on the classpath or in 'Plugins and Schemas'. A new instance receives the infoset events created by parsing and passes modified events on to be unparsed.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    /**
+     * Channel owned by a single thread that is rebound to each FlowFile's
+     * OutputStream, see DaffodilUnparse
+     */
+    private final ThreadLocal<ReusableOutputStream> pooledChannel = ThreadLocal.withInitial(ReusableOutputStream::new);
+
+    private Class<? extends XMLFilterImpl> transformClass = null;
+
+    @Override
+    protected boolean isUnparse() { return false; }
+
+    @Override
+    protected boolean hasInfosetType() { return false; }
+
+    @Override
+    protected List<PropertyDescriptor> getAdditionalSchemaProperties() {
+        return Collections.unmodifiableList(Arrays.asList(TARGET_DFDL_SCHEMA_FILE, TARGET_PRE_COMPILED_SCHEMA));
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getAdditionalProperties() {
+        return Collections.singletonList(TRANSFORM_CLASS);
+    }
+
+    /**
+     * The resulting output mime type is based entirely on the target DFDL
+     * schema and cannot be known, see DaffodilUnparse
+     */
+    @Override
+    protected String getOutputMimeType(String infosetType) {
+        return null;
+    }
+
+    @OnScheduled
+    public void loadTransformClass(final ProcessContext context) {
+        final String className = context.getProperty(TRANSFORM_CLASS).getValue();
+        if (className == null) {
+            transformClass = null;
+            return;
+        }
+        try {
+            // use the class loader of this processor so that classes in 'Plugins and Schemas' are found
+            transformClass = Class.forName(className, true, getClass().getClassLoader()).asSubclass(XMLFilterImpl.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new ProcessException("Failed to load 'Transform Class' " + className + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected void processWithDaffodil(final ProcessContext context, final DataProcessor dp, final FlowFile ff, final InputStream in, final OutputStream out, String infosetType, ProcessingState state) throws IOException {
+        final String targetSchema = context.getProperty(TARGET_DFDL_SCHEMA_FILE).evaluateAttributeExpressions(ff).getValue();
+        final Boolean targetPreCompiled = context.getProperty(TARGET_PRE_COMPILED_SCHEMA).evaluateAttributeExpressions(ff).asBoolean();
+
+        // Unparse ignores validation, so always use "off" for the target so it shares a cached
+        // DataProcessor with any DaffodilUnparse using the same schema
+        final DataProcessor targetDP;
+        try {
+            targetDP = getDataProcessor(new CompilationParams(targetSchema, targetPreCompiled, "off", getTunables()));
+        } catch (DaffodilCompileException e) {
+            throw new DaffodilProcessingException("Failed to compile target DFDL schema: " + targetSchema, e);
+        }
+
+        final ReusableOutputStream wbc = pooledChannel.get();
+        wbc.bind(out);
+
+        boolean success = false;
+        AbortableContentHandler handler = null;
+        try {
+            // Parse events are passed directly to the unparser of the target schema. Daffodil's
+            // SAX unparse handler runs the unparse incrementally as batches of events arrive, so
+            // the infoset is never fully materialized and is never written as text
+            final DaffodilUnparseContentHandler unparseHandler = getEngine().newContentHandler(targetDP, wbc);
+            ContentHandler downstream = unparseHandler;
+            if (transformClass != null) {
+                final XMLFilterImpl transform = newTransform();
+                transform.setContentHandler(unparseHandler);
+                downstream = transform;
+            }
+            handler = new AbortableContentHandler(downstream);
+
+            final InputStream parseIn = getParseInputStream(in);
+            final ParseResult pr;
+            try {
+                pr = getEngine().parse(dp, parseIn, handler);
+            } catch (Exception e) {
+                // unparse errors surface as SAXExceptions thrown from the content handler
+                logFailure(state, "Failed to transcode {}: {}", new Object[]{ff, e.getMessage()});
+                UnparseResult ur = unparseHandler.getUnparseResult();
+                if (ur != null) {
+                    reportDiagnostics(state, ur);
+                }
+                throw new DaffodilProcessingException("Failed to unparse", e);
+            }
+            checkParseResult(ff, pr, state);
+            checkLeftOverData(ff, parseIn, pr, state);
+
+            final UnparseResult ur = unparseHandler.getUnparseResult();
+            if (ur == null || ur.isError()) {
+                logFailure(state, "Failed to unparse {}", new Object[]{ff});
+                if (ur != null) {
+                    reportDiagnostics(state, ur);
+                }
+                throw new DaffodilProcessingException("Failed to unparse");
+            }
+            wbc.unbind();
+            success = true;
+        } finally {
+            if (!success) {
+                if (handler != null) {
+                    handler.abort();
+                }
+                wbc.discard();
+            }
+        }
+    }
+
+    private XMLFilterImpl newTransform() throws DaffodilProcessingException {
+        try {
+            return transformClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new DaffodilProcessingException("Failed to create 'Transform Class' " + transformClass.getName(), e);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.InputRequirement.Requirement;
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+
+@SideEffectFree
+@SupportsBatching
+@InputRequirement(Requirement.INPUT_REQUIRED)
+@Tags({"xml", "json", "cbor", "smile", "daffodil", "dfdl", "schema", "xsd"})
+@SeeAlso(DaffodilUnparse.class)
+@CapabilityDescription("Use Daffodil and a user-specified DFDL schema to transform an XML, JSON, CBOR, or Smile representation of data back to the original data format. Identical to DaffodilUnparse, except that 'Plugins and Schemas' is not supported, so that all instances share the Daffodil classes instead of each loading their own copy.")
+@WritesAttributes({
+    @WritesAttribute(attribute = "mime.type", description = "If the FlowFile is successfully unparsed, this attriute is removed, as the MIME Type is no longer known."),
+    @WritesAttribute(attribute = "daffodil.infoset.count", description = "If 'Infoset Framing' is not 'single', the number of infosets that were unparsed."),
+    @WritesAttribute(attribute = "daffodil.diagnostics", description = "If the FlowFile is routed to failure, the Daffodil diagnostics describing the failure, up to 'Diagnostics Attribute Max Length' characters.")
+})
+@DynamicProperty(
+    name = "Name of external variable defined in a DFDL schema",
+    value = "Value to set for the DFDL external variable. May be an expression. The DFDL variable is not set if the value expression evaluates to an empty string.",
+    description = "Defines an external variable to be used when parsing",
+    expressionLanguageScope = ExpressionLanguageScope.FLOWFILE_ATTRIBUTES
+)
+public class DaffodilUnparseNoPlugins extends AbstractDaffodilUnparse {
+
+    @Override
+    protected boolean supportsPlugins() { return false; }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Counts failure messages and diagnostics by DFDL schema and message
+ * template, and periodically logs one summary line for each, instead of
+ * logging every message for every FlowFile. When bad data arrives at a high
+ * rate, formatting and writing individual log messages (and the bulletins
+ * they create) can cost more than processing the data.
+ *
+ * Summaries are logged by whichever thread first adds a message after the
+ * interval has elapsed. So that the last messages before a quiet period are
+ * not held back until the next one arrives, the processor also calls
+ * logIfDue periodically from a timer, and log when it is stopped. Counts for a
+ * message that arrive while a summary is being logged are included in that
+ * summary or the next one, and are never lost.
+ */
+class DiagnosticSummary {
+
+    /**
+     * Maximum number of distinct templates counted per interval. Templates
+     * that still contain values from the data could otherwise grow without
+     * bound, so once this is reached other messages are counted together.
+     */
+    static final int MAX_TEMPLATES = 1000;
+
+    static final String OTHER_TEMPLATE = "(other messages)";
+
+    /**
+     * Number of characters of a Daffodil diagnostic message used for its
+     * template. The start of the message identifies the problem, the rest is
+     * mostly context that differs for each occurrence.
+     */
+    static final int DIAGNOSTIC_TEMPLATE_LENGTH = 120;
+
+    /**
+     * Value of a count that has been removed from the map, far enough below
+     * zero that concurrent increments cannot make it look valid again
+     */
+    private static final long RETIRED = Long.MIN_VALUE / 2;
+
+    static final class Key {
+        final String dfdlSchema;
+        final boolean error;
+        final String template;
+
+        Key(String dfdlSchema, boolean error, String template) {
+            this.dfdlSchema = dfdlSchema;
+            this.error = error;
+            this.template = template;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return error == that.error && Objects.equals(dfdlSchema, that.dfdlSchema) && template.equals(that.template);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dfdlSchema, error, template);
+        }
+    }
+
+    private final long intervalNanos;
+    private final String intervalDescription;
+    private final ConcurrentHashMap<Key, AtomicLong> counts = new ConcurrentHashMap<>();
+    private final AtomicLong nextSummary;
+
+    DiagnosticSummary(long intervalNanos, String intervalDescription) {
+        this.intervalNanos = intervalNanos;
+        this.intervalDescription = intervalDescription;
+        this.nextSummary = new AtomicLong(System.nanoTime() + intervalNanos);
+    }
+
+    /**
+     * Replaces the parts of a message that typically differ for each
+     * occurrence, such as data positions, array indices, and values, so that
+     * occurrences of the same problem are counted together
+     */
+    static String toTemplate(String message) {
+        return toTemplate(message, message.length());
+    }
+
+    /**
+     * Like toTemplate(String), but only the first maxLength characters of
+     * the message are used, which bounds the cost for every occurrence
+     */
+    static String toTemplate(String message, int maxLength) {
+        final int length = Math.min(message.length(), maxLength);
+        final StringBuilder sb = new StringBuilder(length);
+        boolean inNumber = false;
+        for (int i = 0; i < length; i++) {
+            final char c = message.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (!inNumber) {
+                    sb.append('#');
+                    inNumber = true;
+                }
+            } else {
+                inNumber = false;
+                if (c == '\n' || c == '\r') {
+                    // only the first line, later lines are schema and data context
+                    break;
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    void add(String dfdlSchema, boolean error, String template, ComponentLog logger) {
+        Key key = new Key(dfdlSchema, error, template);
+        while (true) {
+            AtomicLong count = counts.get(key);
+            if (count == null) {
+                if (counts.size() >= MAX_TEMPLATES) {
+                    key = new Key(dfdlSchema, error, OTHER_TEMPLATE);
+                }
+                count = counts.computeIfAbsent(key, k -> new AtomicLong());
+            }
+            if (count.getAndIncrement() >= 0) {
+                break;
+            }
+            // the count was retired by log() after this thread found it, so
+            // count again in a new one
+            counts.remove(key, count);
+        }
+
+        logIfDue(logger);
+    }
+
+    /**
+     * Log a summary if the interval has elapsed since the last one. Only one
+     * of any threads calling this at the same time logs it.
+     */
+    void logIfDue(ComponentLog logger) {
+        final long next = nextSummary.get();
+        final long now = System.nanoTime();
+        if (now - next >= 0 && nextSummary.compareAndSet(next, now + intervalNanos)) {
+            log(logger);
+        }
+    }
+
+    /**
+     * Log a summary line for each message counted since the last summary.
+     * A template with nothing counted in the last interval is forgotten. Its
+     * count is retired by setting it negative before it is removed, so that
+     * a thread still holding it knows to count in a new one instead.
+     */
+    void log(ComponentLog logger) {
+        for (Map.Entry<Key, AtomicLong> entry : counts.entrySet()) {
+            final AtomicLong counter = entry.getValue();
+            long count;
+            do {
+                count = counter.get();
+            } while (count > 0 && !counter.compareAndSet(count, 0));
+            if (count < 0) {
+                // already retired by a concurrent summary
+                continue;
+            }
+            if (count == 0) {
+                if (counter.compareAndSet(0, RETIRED)) {
+                    counts.remove(entry.getKey(), counter);
+                }
+                continue;
+            }
+            final Key key = entry.getKey();
+            final Object[] args = new Object[]{count, key.dfdlSchema, intervalDescription, key.template};
+            if (key.error) {
+                logger.error("{} occurrence(s) for DFDL schema {} in the last {}: {}", args);
+            } else {
+                logger.warn("{} occurrence(s) for DFDL schema {} in the last {}: {}", args);
+            }
+        }
+    }
+}
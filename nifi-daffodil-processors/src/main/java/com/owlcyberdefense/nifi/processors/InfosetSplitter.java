@@ -0,0 +1,445 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream containing multiple infosets into a separate InputStream
+ * for each infoset, without copying each infoset into its own buffer.
+ *
+ * Daffodil InfosetInputters read ahead from their InputStream and expect it
+ * to contain exactly one infoset, so each one must be given a stream that
+ * ends where its infoset ends. next() returns such a stream, which reads
+ * directly from the internal buffer of this splitter and reports end of
+ * stream at the boundary found by a BoundaryScanner. Whitespace between
+ * infosets is skipped.
+ *
+ * Like ReusableOutputStream, this is not thread safe and is expected to be
+ * owned by a single thread and reused for many FlowFiles via reset().
+ */
+class InfosetSplitter {
+
+    /**
+     * Finds where an infoset ends. Bytes are passed to scan() in order, in
+     * as many calls as needed, until it returns the index just after the last
+     * byte of the infoset. The scanner is reset before each infoset.
+     */
+    interface BoundaryScanner {
+        void reset();
+        int scan(byte[] buf, int from, int to);
+    }
+
+    /**
+     * Each infoset is a single line
+     */
+    static final class NewlineBoundaryScanner implements BoundaryScanner {
+        @Override
+        public void reset() { }
+
+        @Override
+        public int scan(byte[] buf, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buf[i] == '\n') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Each infoset is a JSON object, which ends when the braces and brackets
+     * outside of strings are balanced
+     */
+    static final class JsonBoundaryScanner implements BoundaryScanner {
+        private int depth;
+        private boolean inString;
+        private boolean escaped;
+
+        @Override
+        public void reset() {
+            depth = 0;
+            inString = false;
+            escaped = false;
+        }
+
+        @Override
+        public int scan(byte[] buf, int from, int to) {
+            for (int i = from; i < to; i++) {
+                final byte c = buf[i];
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Each infoset is an XML document, optionally with a prolog, which ends
+     * at the end tag of its root element. Only the markup needed to find that
+     * end tag is recognized: processing instructions, comments, CDATA
+     * sections, declarations, and quoted attribute values. All of these are
+     * delimited by ASCII characters, so this works for any ASCII compatible
+     * encoding such as UTF-8.
+     */
+    static final class XmlBoundaryScanner implements BoundaryScanner {
+        private static final int TEXT = 0;
+        private static final int MARKUP = 1;
+        private static final int PI = 2;
+        private static final int BANG = 3;
+        private static final int COMMENT_OPEN = 4;
+        private static final int COMMENT = 5;
+        private static final int CDATA_OPEN = 6;
+        private static final int CDATA = 7;
+        private static final int DECL = 8;
+        private static final int END_TAG = 9;
+        private static final int START_TAG = 10;
+
+        private int state;
+        private int depth;
+        private int match;
+        private int brackets;
+        private byte quote;
+        private boolean slash;
+
+        @Override
+        public void reset() {
+            state = TEXT;
+            depth = 0;
+            match = 0;
+            brackets = 0;
+            quote = 0;
+            slash = false;
+        }
+
+        @Override
+        public int scan(byte[] buf, int from, int to) {
+            for (int i = from; i < to; i++) {
+                final byte c = buf[i];
+                switch (state) {
+                    case TEXT:
+                        if (c == '<') {
+                            state = MARKUP;
+                        }
+                        break;
+                    case MARKUP:
+                        if (c == '?') {
+                            state = PI;
+                            match = 0;
+                        } else if (c == '!') {
+                            state = BANG;
+                        } else if (c == '/') {
+                            state = END_TAG;
+                        } else {
+                            state = START_TAG;
+                            quote = 0;
+                            slash = false;
+                        }
+                        break;
+                    case PI:
+                        // ends with ?>
+                        if (c == '>' && match == 1) {
+                            state = TEXT;
+                        } else {
+                            match = c == '?' ? 1 : 0;
+                        }
+                        break;
+                    case BANG:
+                        if (c == '-') {
+                            state = COMMENT_OPEN;
+                        } else if (c == '[') {
+                            state = CDATA_OPEN;
+                        } else {
+                            state = DECL;
+                            brackets = 0;
+                            quote = 0;
+                        }
+                        break;
+                    case COMMENT_OPEN:
+                        // second dash of <!--
+                        state = COMMENT;
+                        match = 0;
+                        break;
+                    case COMMENT:
+                        // ends with -->
+                        if (c == '>' && match >= 2) {
+                            state = TEXT;
+                        } else {
+                            match = c == '-' ? match + 1 : 0;
+                        }
+                        break;
+                    case CDATA_OPEN:
+                        // skip CDATA[
+                        if (c == '[') {
+                            state = CDATA;
+                            match = 0;
+                        }
+                        break;
+                    case CDATA:
+                        // ends with ]]>
+                        if (c == '>' && match >= 2) {
+                            state = TEXT;
+                        } else {
+                            match = c == ']' ? match + 1 : 0;
+                        }
+                        break;
+                    case DECL:
+                        // e.g. a DOCTYPE, which may have an internal subset in brackets
+                        if (quote != 0) {
+                            if (c == quote) {
+                                quote = 0;
+                            }
+                        } else if (c == '"' || c == '\'') {
+                            quote = c;
+                        } else if (c == '[') {
+                            brackets++;
+                        } else if (c == ']') {
+                            brackets--;
+                        } else if (c == '>' && brackets <= 0) {
+                            state = TEXT;
+                        }
+                        break;
+                    case END_TAG:
+                        if (c == '>') {
+                            state = TEXT;
+                            depth--;
+                            if (depth == 0) {
+                                return i + 1;
+                            }
+                        }
+                        break;
+                    case START_TAG:
+                        if (quote != 0) {
+                            if (c == quote) {
+                                quote = 0;
+                            }
+                        } else if (c == '"' || c == '\'') {
+                            quote = c;
+                        } else if (c == '>') {
+                            state = TEXT;
+                            if (!slash) {
+                                depth++;
+                            } else if (depth == 0) {
+                                // an empty root element
+                                return i + 1;
+                            }
+                        } else {
+                            slash = c == '/';
+                        }
+                        break;
+                    default:
+                        throw new AssertionError("Unknown XML scanner state: " + state);
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final byte[] buf;
+    private InputStream in = null;
+    private BoundaryScanner scanner = null;
+
+    // unread buffered bytes are in [pos, limit), and bytes up to scanned have
+    // been passed to the scanner. If the end of the current infoset has been
+    // found, it is at end, otherwise end is -1
+    private int pos = 0;
+    private int limit = 0;
+    private int scanned = 0;
+    private int end = -1;
+    private boolean eof = false;
+    private Infoset current = null;
+
+    InfosetSplitter() {
+        this(ReusableOutputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    InfosetSplitter(int bufferSize) {
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Start splitting a new input stream. Any state from a previous stream is
+     * discarded.
+     */
+    void reset(InputStream in, BoundaryScanner scanner) {
+        this.in = in;
+        this.scanner = scanner;
+        this.pos = 0;
+        this.limit = 0;
+        this.scanned = 0;
+        this.end = -1;
+        this.eof = false;
+        this.current = null;
+    }
+
+    /**
+     * Detach from the current input stream so it is not referenced after its
+     * FlowFile has been processed
+     */
+    void clear() {
+        reset(null, null);
+    }
+
+    /**
+     * Returns a stream of the next infoset, or null if there are no more. Any
+     * part of the previous infoset that was not read is skipped.
+     */
+    InputStream next() throws IOException {
+        if (current != null) {
+            current.skipRemaining();
+            current = null;
+        }
+        while (true) {
+            while (pos < limit && isWhitespace(buf[pos])) {
+                pos++;
+            }
+            if (pos < limit) {
+                break;
+            }
+            if (!fill()) {
+                return null;
+            }
+        }
+        scanner.reset();
+        scanned = pos;
+        end = -1;
+        scan();
+        current = new Infoset();
+        return current;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Refill the buffer once all buffered bytes have been read. Returns false
+     * at the end of the input stream.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        pos = 0;
+        limit = 0;
+        scanned = 0;
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private void scan() {
+        if (end < 0 && scanned < limit) {
+            end = scanner.scan(buf, scanned, limit);
+            scanned = limit;
+        }
+    }
+
+    /**
+     * A view of the buffered input that ends at the end of one infoset. If
+     * the input ends before the boundary is found, the remaining input is
+     * treated as the last infoset, and the InfosetInputter reports any error.
+     */
+    private class Infoset extends InputStream {
+        private boolean done = false;
+
+        private int available0() throws IOException {
+            while (!done) {
+                final int stop = end >= 0 ? end : limit;
+                if (pos < stop) {
+                    return stop - pos;
+                }
+                if (end >= 0 || !fill()) {
+                    done = true;
+                    break;
+                }
+                scan();
+            }
+            return -1;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (available0() < 0) {
+                return -1;
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int avail = available0();
+            if (avail < 0) {
+                return -1;
+            }
+            final int n = Math.min(len, avail);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            if (done) {
+                return 0;
+            }
+            return (end >= 0 ? end : limit) - pos;
+        }
+
+        void skipRemaining() throws IOException {
+            int avail;
+            while ((avail = available0()) > 0) {
+                pos += avail;
+            }
+        }
+
+        /**
+         * InfosetInputters may close their stream, which must not close the
+         * underlying FlowFile stream
+         */
+        @Override
+        public void close() { }
+    }
+}
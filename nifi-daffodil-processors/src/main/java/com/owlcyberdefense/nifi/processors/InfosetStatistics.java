@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.daffodil.api.infoset.InfosetArray;
+import org.apache.daffodil.api.infoset.InfosetComplexElement;
+import org.apache.daffodil.api.infoset.InfosetElement;
+import org.apache.daffodil.api.infoset.InfosetOutputter;
+import org.apache.daffodil.api.infoset.InfosetSimpleElement;
+
+/**
+ * Infoset statistics accumulated over the FlowFiles selected for sampling:
+ * the number of FlowFiles, the bytes they consumed, and the total time to
+ * parse them, measured around each whole parse, and the number of times each
+ * element path (e.g. /file/record/item) occurred in their infosets. Which
+ * branch of a choice was taken is visible as the counts of the different
+ * child element paths.
+ *
+ * Element occurrences are counted by wrapping the InfosetOutputter with a
+ * CountingOutputter. Every value is exact. Nothing is timed per element,
+ * since the time between infoset events is not the time Daffodil spends
+ * parsing an element.
+ */
+class InfosetStatistics {
+
+    private final Map<String, LongAdder> elements = new ConcurrentHashMap<>();
+    private final AtomicLong flowFiles = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicBoolean warm = new AtomicBoolean();
+
+    LongAdder getCount(String path) {
+        return elements.computeIfAbsent(path, k -> new LongAdder());
+    }
+
+    /**
+     * Returns false the first time it is called, and true after. The first
+     * FlowFile sampled for a DFDL schema pays one-time costs such as class
+     * loading and Daffodil's lazy initialization, so it is not recorded.
+     */
+    boolean warmedUp() {
+        return !warm.compareAndSet(false, true);
+    }
+
+    /**
+     * Record the totals for one sampled FlowFile
+     */
+    void addFlowFile(long consumedBytes, long nanos) {
+        flowFiles.incrementAndGet();
+        bytes.addAndGet(consumedBytes);
+        parseNanos.addAndGet(nanos);
+    }
+
+    long getFlowFileCount() {
+        return flowFiles.get();
+    }
+
+    void clear() {
+        elements.clear();
+        flowFiles.set(0);
+        bytes.set(0);
+        parseNanos.set(0);
+    }
+
+    /**
+     * The totals on the first line, followed by the most frequent element
+     * paths, one per line, in the form: path count=N
+     */
+    String report(int maxElements) {
+        final List<Map.Entry<String, LongAdder>> sorted = new ArrayList<>(elements.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("flowfiles=").append(flowFiles.get())
+          .append(" bytes=").append(bytes.get())
+          .append(" parse=").append(parseNanos.get() / 1000).append("us");
+        for (Map.Entry<String, LongAdder> entry : sorted.subList(0, Math.min(maxElements, sorted.size()))) {
+            sb.append('\n').append(entry.getKey()).append(" count=").append(entry.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Passes all events through to another InfosetOutputter while counting
+     * the occurrences of each element path. A new instance is used for each
+     * sampled FlowFile.
+     */
+    static final class CountingOutputter extends InfosetOutputter {
+        private final InfosetOutputter delegate;
+        private final InfosetStatistics statistics;
+
+        // the path of each open complex element
+        private final List<String> paths = new ArrayList<>();
+
+        CountingOutputter(InfosetOutputter delegate, InfosetStatistics statistics) {
+            this.delegate = delegate;
+            this.statistics = statistics;
+        }
+
+        private String path(InfosetElement element) {
+            final String parent = paths.isEmpty() ? "" : paths.get(paths.size() - 1);
+            return parent + "/" + element.metadata().name();
+        }
+
+        // blob settings and results belong to the wrapped outputter, not to this one
+
+        @Override
+        public Path getBlobDirectory() {
+            return delegate.getBlobDirectory();
+        }
+
+        @Override
+        public String getBlobPrefix() {
+            return delegate.getBlobPrefix();
+        }
+
+        @Override
+        public String getBlobSuffix() {
+            return delegate.getBlobSuffix();
+        }
+
+        @Override
+        public void setBlobAttributes(Path dir, String prefix, String suffix) {
+            delegate.setBlobAttributes(dir, prefix, suffix);
+        }
+
+        @Override
+        public List<Path> getBlobPaths() {
+            return delegate.getBlobPaths();
+        }
+
+        @Override
+        public void setBlobPaths(List<Path> paths) {
+            delegate.setBlobPaths(paths);
+        }
+
+        @Override
+        public void reset() {
+            paths.clear();
+            delegate.reset();
+        }
+
+        @Override
+        public void startDocument() throws Exception {
+            delegate.startDocument();
+        }
+
+        @Override
+        public void endDocument() throws Exception {
+            delegate.endDocument();
+        }
+
+        @Override
+        public void startSimple(InfosetSimpleElement simple) throws Exception {
+            statistics.getCount(path(simple)).increment();
+            delegate.startSimple(simple);
+        }
+
+        @Override
+        public void endSimple(InfosetSimpleElement simple) throws Exception {
+            delegate.endSimple(simple);
+        }
+
+        @Override
+        public void startComplex(InfosetComplexElement complex) throws Exception {
+            final String path = path(complex);
+            statistics.getCount(path).increment();
+            paths.add(path);
+            delegate.startComplex(complex);
+        }
+
+        @Override
+        public void endComplex(InfosetComplexElement complex) throws Exception {
+            delegate.endComplex(complex);
+            if (!paths.isEmpty()) {
+                paths.remove(paths.size() - 1);
+            }
+        }
+
+        @Override
+        public void startArray(InfosetArray array) throws Exception {
+            delegate.startArray(array);
+        }
+
+        @Override
+        public void endArray(InfosetArray array) throws Exception {
+            delegate.endArray(array);
+        }
+    }
+}
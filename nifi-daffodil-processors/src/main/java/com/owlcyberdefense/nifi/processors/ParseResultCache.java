@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import javax.xml.transform.Templates;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Caches the output of successfully parsing small FlowFiles, so that
+ * byte-identical content (e.g. heartbeats or status messages) parsed with the
+ * same configuration can be written without parsing it again.
+ *
+ * The key includes the full content rather than just a hash of it, so a hit
+ * is always an exact match. Only configuration that can change per FlowFile
+ * is part of the key; everything else is fixed while the processor is
+ * running, and the cache is recreated whenever it is scheduled. Compiled
+ * stylesheets are compared by identity, which is enough since they come
+ * from the stylesheet cache.
+ */
+class ParseResultCache {
+
+    /**
+     * Approximate per-entry memory used by the key, entry, and cache, in
+     * addition to the content and output
+     */
+    static final int ENTRY_OVERHEAD = 128;
+
+    static final class Key {
+        final String dfdlSchema;
+        final Boolean preCompiled;
+        final Map<String, String> variables;
+        final String infosetType;
+        final Templates stylesheet;
+        final byte[] content;
+        private final int hash;
+
+        Key(String dfdlSchema, Boolean preCompiled, Map<String, String> variables, String infosetType, Templates stylesheet, byte[] content) {
+            this.dfdlSchema = dfdlSchema;
+            this.preCompiled = preCompiled;
+            this.variables = variables;
+            this.infosetType = infosetType;
+            this.stylesheet = stylesheet;
+            this.content = content;
+            this.hash = Objects.hash(dfdlSchema, preCompiled, variables, infosetType, stylesheet) * 31 + Arrays.hashCode(content);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key that = (Key) o;
+            return hash == that.hash
+                && Arrays.equals(content, that.content)
+                && Objects.equals(dfdlSchema, that.dfdlSchema)
+                && Objects.equals(preCompiled, that.preCompiled)
+                && Objects.equals(variables, that.variables)
+                && Objects.equals(infosetType, that.infosetType)
+                && Objects.equals(stylesheet, that.stylesheet);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    static final class Entry {
+        final byte[] output;
+        final long remainderOffset;
+        final String outputMimeType;
+
+        Entry(byte[] output, long remainderOffset, String outputMimeType) {
+            this.output = output;
+            this.remainderOffset = remainderOffset;
+            this.outputMimeType = outputMimeType;
+        }
+    }
+
+    private final Cache<Key, Entry> cache;
+    private final long maxContentSize;
+
+    ParseResultCache(long maxMemory, long maxContentSize) {
+        this.maxContentSize = maxContentSize;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxMemory)
+            .weigher((Key key, Entry entry) -> key.content.length + entry.output.length + ENTRY_OVERHEAD)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * FlowFiles larger than this are always parsed
+     */
+    long getMaxContentSize() {
+        return maxContentSize;
+    }
+
+    Entry get(Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    void put(Key key, Entry entry) {
+        cache.put(key, entry);
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered OutputStream and WritableByteChannel whose underlying target can
+ * be changed.
+ *
+ * Daffodil InfosetOutputters and WritableByteChannels are bound to a single
+ * stream when they are created. Binding them to one of these instead allows
+ * the same instances (and the internal buffer) to be reused for many
+ * FlowFiles by calling bind() with the FlowFile OutputStream before
+ * processing and unbind() afterwards.
+ *
+ * This class is not thread safe. Instances are expected to be owned by a
+ * single thread, usually via a ThreadLocal.
+ */
+class ReusableOutputStream extends OutputStream implements WritableByteChannel {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] buf;
+    private int count = 0;
+    private OutputStream target = null;
+
+    ReusableOutputStream() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    ReusableOutputStream(int bufferSize) {
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Direct all future writes to a new target. Any data buffered for a
+     * previous target is discarded.
+     */
+    void bind(OutputStream target) {
+        this.target = target;
+        this.count = 0;
+    }
+
+    /**
+     * Flush any buffered data to the current target and then detach from it,
+     * so that the target can be closed by its owner.
+     */
+    void unbind() throws IOException {
+        try {
+            flush();
+        } finally {
+            target = null;
+        }
+    }
+
+    /**
+     * Detach from the current target and discard any buffered data without
+     * writing it. Used when processing fails and the output will be thrown
+     * away anyway.
+     */
+    void discard() {
+        target = null;
+        count = 0;
+    }
+
+    private OutputStream target() throws IOException {
+        if (target == null) {
+            throw new IOException("ReusableOutputStream is not bound to a target");
+        }
+        return target;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            target().write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buf.length) {
+            // large writes bypass the buffer entirely
+            flushBuffer();
+            target().write(b, off, len);
+            return;
+        }
+        if (len > buf.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        final int len = src.remaining();
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), len);
+            src.position(src.limit());
+        } else {
+            while (src.hasRemaining()) {
+                if (count == buf.length) {
+                    flushBuffer();
+                }
+                final int n = Math.min(src.remaining(), buf.length - count);
+                src.get(buf, count, n);
+                count += n;
+            }
+        }
+        return len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        if (target != null) {
+            target.flush();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return target != null;
+    }
+
+    /**
+     * The target stream is owned by the caller of bind(), so closing only
+     * flushes. This prevents Daffodil or a wrapping writer from closing a
+     * NiFi content stream out from under the session.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
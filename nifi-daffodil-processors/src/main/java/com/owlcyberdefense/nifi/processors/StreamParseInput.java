@@ -0,0 +1,426 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived stream of messages read by DaffodilStreamParse, which a single
+ * InputSourceDataInputStream parses from until the source closes or a read
+ * times out.
+ *
+ * Reads block until data arrives rather than returning the end of the stream,
+ * since a message may arrive in pieces, but never past the deadline given to
+ * setDeadline. Between messages, awaitData() waits for the first byte of the
+ * next message and holds on to that byte until Daffodil reads it. Once a
+ * message has started, a read that would wait past the deadline instead
+ * returns the end of the stream, which fails the parse, and isTimedOut()
+ * returns true. Since Daffodil does not read again after the end of the
+ * stream, the processor then calls rewind() and parses the message again
+ * from its start with a new InputSourceDataInputStream.
+ *
+ * To allow this, every byte delivered to Daffodil is kept until release()
+ * says the message containing it was parsed. The bytes delivered are counted
+ * so the processor can tell whether Daffodil has already buffered the start
+ * of the next message.
+ */
+abstract class StreamParseInput extends InputStream {
+
+    /**
+     * Returned by readByte and readAvailable if no data arrived in time
+     */
+    static final int TIMEOUT = -2;
+
+    private int peeked = -1;
+    private boolean ended = false;
+    private long delivered = 0;
+    private volatile boolean closed = false;
+
+    private long deadlineNanos = 0;
+    private boolean hasDeadline = false;
+    private boolean timedOut = false;
+
+    /**
+     * Bytes delivered since historyStart that have not been released, of
+     * which those past 'delivered' are delivered again after a rewind
+     */
+    private byte[] history = new byte[8192];
+    private int historyLength = 0;
+    private long historyStart = 0;
+
+    /**
+     * Read one byte, waiting at most timeoutMillis for it to arrive. Returns
+     * TIMEOUT if it did not arrive in time, or -1 at the end of the stream.
+     */
+    protected abstract int readByte(long timeoutMillis) throws IOException;
+
+    /**
+     * Read at least one byte, waiting at most timeoutMillis for data to
+     * arrive. Returns TIMEOUT if none arrived in time, or -1 at the end of the
+     * stream.
+     */
+    protected abstract int readAvailable(byte[] b, int off, int len, long timeoutMillis) throws IOException;
+
+    protected abstract void closeSource() throws IOException;
+
+    /**
+     * The URI of the source, used as the provenance transit URI
+     */
+    abstract String getTransitUri();
+
+    /**
+     * Reads that would wait past this System.nanoTime() return the end of
+     * the stream instead
+     */
+    void setDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.hasDeadline = true;
+    }
+
+    /**
+     * Returns true if a read returned the end of the stream because the
+     * deadline passed, after which no more data is read until rewind()
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    private long remainingMillis() {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    private int pending() {
+        return (int) (historyStart + historyLength - delivered);
+    }
+
+    /**
+     * Wait at most timeoutMillis for the next byte. Returns true if a byte is
+     * available, or false if none arrived in time or the stream has ended.
+     */
+    boolean awaitData(long timeoutMillis) throws IOException {
+        if (peeked >= 0 || pending() > 0) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        final int b = readByte(timeoutMillis);
+        if (b == TIMEOUT) {
+            return false;
+        }
+        if (b < 0) {
+            ended = true;
+            return false;
+        }
+        peeked = b;
+        return true;
+    }
+
+    /**
+     * Returns true once the end of the stream has been reached, e.g. when the
+     * sender closes its connection
+     */
+    boolean isEnded() {
+        return ended && peeked < 0 && pending() == 0;
+    }
+
+    /**
+     * The number of bytes read from this stream
+     */
+    long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Forget the bytes before position, counted like getDelivered(), since
+     * they will not be parsed again
+     */
+    void release(long position) {
+        final int count = (int) (Math.min(position, delivered) - historyStart);
+        if (count > 0) {
+            System.arraycopy(history, count, history, 0, historyLength - count);
+            historyLength -= count;
+            historyStart += count;
+        }
+    }
+
+    /**
+     * Deliver the bytes from position onward again, and count bytes from
+     * there, so that a new InputSourceDataInputStream can parse them
+     */
+    void rewind(long position) {
+        release(position);
+        historyStart = 0;
+        delivered = 0;
+        timedOut = false;
+    }
+
+    private void record(byte[] b, int off, int len) {
+        if (historyLength + len > history.length) {
+            history = Arrays.copyOf(history, Math.max(history.length * 2, historyLength + len));
+        }
+        System.arraycopy(b, off, history, historyLength, len);
+        historyLength += len;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        final int pending = pending();
+        if (pending > 0) {
+            final int n = Math.min(len, pending);
+            System.arraycopy(history, (int) (delivered - historyStart), b, off, n);
+            delivered += n;
+            return n;
+        }
+        if (peeked >= 0) {
+            b[off] = (byte) peeked;
+            peeked = -1;
+            record(b, off, 1);
+            delivered++;
+            return 1;
+        }
+        if (ended || timedOut) {
+            return -1;
+        }
+        final int n = readAvailable(b, off, len, remainingMillis());
+        if (n == TIMEOUT) {
+            timedOut = true;
+            return -1;
+        }
+        if (n < 0) {
+            ended = true;
+        } else {
+            record(b, off, n);
+            delivered += n;
+        }
+        return n;
+    }
+
+    /**
+     * Closing may happen from another thread to stop a blocked read
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        closeSource();
+    }
+
+    /**
+     * A TCP connection accepted by the processor, which ends when the sender
+     * closes it
+     */
+    static final class Connection extends StreamParseInput {
+        private final Socket socket;
+        private final InputStream in;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = socket.getInputStream();
+        }
+
+        @Override
+        protected int readByte(long timeoutMillis) throws IOException {
+            socket.setSoTimeout((int) Math.max(1, Math.min(timeoutMillis, Integer.MAX_VALUE)));
+            try {
+                return in.read();
+            } catch (SocketTimeoutException e) {
+                return TIMEOUT;
+            }
+        }
+
+        @Override
+        protected int readAvailable(byte[] b, int off, int len, long timeoutMillis) throws IOException {
+            if (timeoutMillis <= 0) {
+                return TIMEOUT;
+            }
+            socket.setSoTimeout((int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+            try {
+                return in.read(b, off, len);
+            } catch (SocketTimeoutException e) {
+                return TIMEOUT;
+            }
+        }
+
+        @Override
+        protected void closeSource() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        String getTransitUri() {
+            return "tcp://" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+    }
+
+    /**
+     * A local file that is appended to, read from a starting position. The
+     * end of the file is never the end of the stream, instead reads poll until
+     * more data is appended. Once everything in the open file has been read,
+     * the stream ends if the file was truncated, or if the path now names a
+     * different file, e.g. because a log rotator renamed it and created a new
+     * one. The open file stays readable after being renamed, so the path is
+     * checked rather than the open file.
+     */
+    static final class TailedFile extends StreamParseInput {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final long pollMillis;
+        private final Object fileKey;
+        private boolean replaced = false;
+
+        TailedFile(File file, long position, long pollMillis) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "r");
+            this.pollMillis = pollMillis;
+            // the key of the file just opened, unless it was replaced in between
+            this.fileKey = getFileKey(file);
+            raf.seek(position);
+        }
+
+        /**
+         * Returns the key that identifies the file the path names, such as its
+         * device and inode, or null if the file system does not provide one
+         */
+        static Object getFileKey(File file) throws IOException {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        }
+
+        /**
+         * The key of the open file, or null if the file system does not
+         * provide one
+         */
+        Object getFileKey() {
+            return fileKey;
+        }
+
+        /**
+         * Returns true if the stream ended because the file was truncated or
+         * replaced, in which case the file should be read from the start
+         */
+        boolean isReplaced() {
+            return replaced;
+        }
+
+        /**
+         * The current length of the file
+         */
+        long length() throws IOException {
+            return raf.length();
+        }
+
+        @Override
+        protected int readByte(long timeoutMillis) throws IOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (true) {
+                final int b = raf.read();
+                if (b >= 0) {
+                    return b;
+                }
+                if (isClosed() || checkReplaced()) {
+                    return -1;
+                }
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return TIMEOUT;
+                }
+                sleep(Math.min(pollMillis, remaining));
+            }
+        }
+
+        @Override
+        protected int readAvailable(byte[] b, int off, int len, long timeoutMillis) throws IOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutMillis, TimeUnit.DAYS.toMillis(1)));
+            while (true) {
+                final int n = raf.read(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+                if (isClosed() || checkReplaced()) {
+                    return -1;
+                }
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return TIMEOUT;
+                }
+                sleep(Math.min(pollMillis, remaining));
+            }
+        }
+
+        private boolean checkReplaced() throws IOException {
+            final long pointer = raf.getFilePointer();
+            if (raf.length() < pointer) {
+                replaced = true;
+                return true;
+            }
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                final Object key = attributes.fileKey();
+                replaced = (key != null && !key.equals(fileKey)) || attributes.size() < pointer;
+            } catch (NoSuchFileException e) {
+                // renamed, but the new file has not been created yet
+            }
+            return replaced;
+        }
+
+        private static void sleep(long millis) throws InterruptedIOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for data");
+            }
+        }
+
+        @Override
+        protected void closeSource() throws IOException {
+            raf.close();
+        }
+
+        @Override
+        String getTransitUri() {
+            return file.toURI().toString();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2021 Owl Cyber Defense
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.owlcyberdefense.nifi.processors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scale and soak tests for the Daffodil processors. These use generated
+ * inputs that are much larger than the fixtures used by TestDaffodilProcessor
+ * and take minutes to run, so they are not run by default. Run them with the
+ * performance profile:
+ *
+ *   mvn -P performance test
+ *
+ * Each test prints a summary of its throughput, latency percentiles, and
+ * peak heap, and fails if a threshold is exceeded. The sizes and thresholds
+ * are system properties whose defaults are set in the profile, and can be
+ * overridden on the command line, e.g. -Dperf.largeInputMB=1024. Note that
+ * NiFi mock FlowFiles hold content in memory, so large inputs also need a
+ * larger -Dperf.heap.
+ */
+public class DaffodilProcessorPerformanceIT {
+
+    private static final String CSV_SCHEMA = "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd";
+
+    /**
+     * Times of each call to onTrigger, recorded by TimedDaffodilParse
+     */
+    private static final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A DaffodilParse that records how long each onTrigger takes
+     */
+    public static class TimedDaffodilParse extends DaffodilParse {
+        @Override
+        public void onTrigger(final ProcessContext context, final ProcessSession session) {
+            final long start = System.nanoTime();
+            try {
+                super.onTrigger(context, session);
+            } finally {
+                latencies.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static long longProperty(String name, long defaultValue) {
+        return Long.parseLong(System.getProperty(name, Long.toString(defaultValue)));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        return Double.parseDouble(System.getProperty(name, Double.toString(defaultValue)));
+    }
+
+    /**
+     * Generates CSV data matching csv.dfdl.xsd of approximately the given size
+     */
+    private static byte[] generateCSV(long size) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream((int) Math.min(size + 64, Integer.MAX_VALUE - 8));
+        final byte[] header = "first,second,third\n".getBytes(StandardCharsets.US_ASCII);
+        baos.write(header, 0, header.length);
+        long row = 0;
+        while (baos.size() < size) {
+            final byte[] record = (row + "," + (row * 7 % 1000) + ",value" + (row % 10000) + "\n").getBytes(StandardCharsets.US_ASCII);
+            baos.write(record, 0, record.length);
+            row++;
+        }
+        return baos.toByteArray();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        final List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : heapPools()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * The sum of the peak usage of each heap pool since the last reset. The
+     * pools do not necessarily peak at the same time, so this is an upper
+     * bound of the actual peak.
+     */
+    private static long peakHeapMB() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return peak / (1024 * 1024);
+    }
+
+    private static long usedHeapAfterGCMB() {
+        System.gc();
+        final Runtime rt = Runtime.getRuntime();
+        return (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+    }
+
+    private static long percentileMillis(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))) / 1_000_000;
+    }
+
+    private static void report(String test, long flowFiles, long bytes, long elapsedNanos, long peakHeapMB) {
+        final List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        final double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(
+            "PERF %s: flowfiles=%d bytes=%d seconds=%.2f throughput=%.2fMB/s rate=%.1f/s p50=%dms p95=%dms p99=%dms max=%dms peakHeap=%dMB",
+            test, flowFiles, bytes, seconds, bytes / seconds / (1024 * 1024), flowFiles / seconds,
+            percentileMillis(sorted, 50), percentileMillis(sorted, 95), percentileMillis(sorted, 99),
+            percentileMillis(sorted, 100), peakHeapMB));
+    }
+
+    private static void assertThresholds(String test, long bytes, long elapsedNanos, long peakHeapMB) {
+        final double throughput = bytes / (elapsedNanos / 1e9) / (1024 * 1024);
+        final double minThroughput = doubleProperty("perf.minThroughputMBps", 1.0);
+        assertTrue(test + ": throughput " + throughput + "MB/s is below " + minThroughput + "MB/s", throughput >= minThroughput);
+
+        final long maxPeakHeap = longProperty("perf.maxPeakHeapMB", 4096);
+        assertTrue(test + ": peak heap " + peakHeapMB + "MB exceeds " + maxPeakHeap + "MB", peakHeapMB <= maxPeakHeap);
+
+        final List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        final long p99 = percentileMillis(sorted, 99);
+        final long maxP99 = longProperty("perf.maxP99LatencyMs", 60000);
+        assertTrue(test + ": p99 latency " + p99 + "ms exceeds " + maxP99 + "ms", p99 <= maxP99);
+    }
+
+    private static TestRunner newParseRunner(String schema) {
+        final TestRunner testRunner = TestRunners.newTestRunner(TimedDaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, schema);
+        testRunner.setProperty("infoset-type", DaffodilParse.INFOSET_TYPE_JSON);
+        return testRunner;
+    }
+
+    /**
+     * Compile the schema and warm up the JIT so that it is not included in
+     * the measurements
+     */
+    private static void warmUp(TestRunner testRunner) {
+        final byte[] data = generateCSV(64 * 1024);
+        for (int i = 0; i < 20; i++) {
+            testRunner.enqueue(data);
+        }
+        testRunner.run(20);
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 20);
+        testRunner.clearTransferState();
+        testRunner.clearProvenanceEvents();
+        latencies.clear();
+    }
+
+    @Before
+    public void clearLatencies() {
+        latencies.clear();
+    }
+
+    @Test
+    public void testLargeInput() {
+        final long size = longProperty("perf.largeInputMB", 64) * 1024 * 1024;
+        final TestRunner testRunner = newParseRunner(CSV_SCHEMA);
+        warmUp(testRunner);
+
+        final byte[] data = generateCSV(size);
+        testRunner.enqueue(data);
+        resetPeakHeap();
+        final long start = System.nanoTime();
+        testRunner.run();
+        final long elapsed = System.nanoTime() - start;
+        final long peakHeap = peakHeapMB();
+
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 1);
+        report("testLargeInput", 1, data.length, elapsed, peakHeap);
+        assertThresholds("testLargeInput", data.length, elapsed, peakHeap);
+    }
+
+    @Test
+    public void testConcurrentSharedDataProcessor() {
+        final int threads = (int) longProperty("perf.threads", 8);
+        final int flowFiles = (int) longProperty("perf.concurrentFlowFiles", 5000);
+        final long size = longProperty("perf.concurrentInputKB", 64) * 1024;
+
+        final TestRunner testRunner = newParseRunner(CSV_SCHEMA);
+        testRunner.setThreadCount(threads);
+        warmUp(testRunner);
+
+        final byte[] data = generateCSV(size);
+        for (int i = 0; i < flowFiles; i++) {
+            testRunner.enqueue(data);
+        }
+        resetPeakHeap();
+        final long start = System.nanoTime();
+        testRunner.run(flowFiles);
+        final long elapsed = System.nanoTime() - start;
+        final long peakHeap = peakHeapMB();
+
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, flowFiles);
+        final long bytes = (long) data.length * flowFiles;
+        report("testConcurrentSharedDataProcessor", flowFiles, bytes, elapsed, peakHeap);
+        assertThresholds("testConcurrentSharedDataProcessor", bytes, elapsed, peakHeap);
+    }
+
+    /**
+     * Select one of several schemas per FlowFile with expression language,
+     * with a cache smaller than the number of schemas so that schemas are
+     * constantly evicted and recompiled
+     */
+    @Test
+    public void testCacheChurn() throws IOException {
+        final int schemas = (int) longProperty("perf.churnSchemas", 4);
+        final int flowFiles = (int) longProperty("perf.churnFlowFiles", 40);
+
+        final Path dir = Files.createTempDirectory("nifi-daffodil-perf-");
+        dir.toFile().deleteOnExit();
+        final byte[] schemaBytes = Files.readAllBytes(Paths.get(CSV_SCHEMA));
+        for (int i = 0; i < schemas; i++) {
+            final File copy = dir.resolve("csv" + i + ".dfdl.xsd").toFile();
+            copy.deleteOnExit();
+            Files.write(copy.toPath(), schemaBytes);
+        }
+
+        final TestRunner testRunner = newParseRunner(dir.toAbsolutePath() + "/${schema}");
+        testRunner.setProperty(DaffodilParse.CACHE_SIZE, Integer.toString(Math.max(1, schemas / 2)));
+
+        final byte[] data = generateCSV(16 * 1024);
+        for (int i = 0; i < flowFiles; i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("schema", "csv" + (i % schemas) + ".dfdl.xsd");
+            testRunner.enqueue(data, attributes);
+        }
+        resetPeakHeap();
+        final long start = System.nanoTime();
+        testRunner.run(flowFiles);
+        final long elapsed = System.nanoTime() - start;
+        final long peakHeap = peakHeapMB();
+
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, flowFiles);
+        // throughput is dominated by compilation here, so only latency and heap are checked
+        report("testCacheChurn", flowFiles, (long) data.length * flowFiles, elapsed, peakHeap);
+        final long maxPeakHeap = longProperty("perf.maxPeakHeapMB", 4096);
+        assertTrue("testCacheChurn: peak heap " + peakHeap + "MB exceeds " + maxPeakHeap + "MB", peakHeap <= maxPeakHeap);
+        final long maxChurnLatency = longProperty("perf.maxChurnLatencyMs", 120000);
+        final List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        final long max = percentileMillis(sorted, 100);
+        assertTrue("testCacheChurn: max latency " + max + "ms exceeds " + maxChurnLatency + "ms", max <= maxChurnLatency);
+    }
+
+    /**
+     * Process batches of FlowFiles for a period of time and check that the
+     * retained heap does not keep growing, e.g. due to leaked pooled buffers
+     * or cache entries
+     */
+    @Test
+    public void testSoak() {
+        final long seconds = longProperty("perf.soakSeconds", 120);
+        final int threads = (int) longProperty("perf.threads", 8);
+        final int batch = 200;
+
+        final TestRunner testRunner = newParseRunner(CSV_SCHEMA);
+        testRunner.setThreadCount(threads);
+        warmUp(testRunner);
+
+        final byte[] data = generateCSV(32 * 1024);
+        final long baseline = usedHeapAfterGCMB();
+        resetPeakHeap();
+        final long start = System.nanoTime();
+        final long end = start + seconds * 1_000_000_000L;
+        long flowFiles = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < batch; i++) {
+                testRunner.enqueue(data);
+            }
+            testRunner.run(batch);
+            testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, batch);
+            testRunner.clearTransferState();
+            testRunner.clearProvenanceEvents();
+            flowFiles += batch;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long peakHeap = peakHeapMB();
+        final long growth = usedHeapAfterGCMB() - baseline;
+
+        final long bytes = (long) data.length * flowFiles;
+        report("testSoak", flowFiles, bytes, elapsed, peakHeap);
+        System.out.println("PERF testSoak: retainedHeapGrowth=" + growth + "MB");
+        assertThresholds("testSoak", bytes, elapsed, peakHeap);
+        final long maxGrowth = longProperty("perf.maxHeapGrowthMB", 64);
+        assertTrue("testSoak: retained heap grew " + growth + "MB, more than " + maxGrowth + "MB", growth <= maxGrowth);
+    }
+
+}
@@ -16,30 +16,79 @@
 
 package com.owlcyberdefense.nifi.processors;
 
-import com.owlcyberdefense.nifi.processors.AbstractDaffodilProcessor.CompilationParams;
+import com.owlcyberdefense.daffodil.engine.CompilationParams;
+import com.owlcyberdefense.daffodil.engine.SchemaPrecompiler;
+import com.owlcyberdefense.daffodil.engine.SharedGrammarValidatorFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.stream.StreamSource;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.io.ByteStreams;
+
+import org.apache.nifi.annotation.behavior.RequiresInstanceClassLoading;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.util.LogMessage;
+import org.apache.nifi.util.MockComponentLog;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 
+import org.apache.daffodil.api.Daffodil;
+import org.apache.daffodil.api.infoset.InfosetArray;
+import org.apache.daffodil.api.infoset.InfosetComplexElement;
+import org.apache.daffodil.api.infoset.InfosetOutputter;
+import org.apache.daffodil.api.infoset.InfosetSimpleElement;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 
 public class TestDaffodilProcessor {
@@ -341,31 +390,6 @@ public class TestDaffodilProcessor {
         infoset.assertContentEquals(expectedContent);
     }
 
-    @Test
-    public void testCompilationParamsEquality() {
-        CompilationParams ck1 = new CompilationParams("one", false, "off");
-        CompilationParams ck2 = new CompilationParams("one", false, "off");
-        CompilationParams ck3 = new CompilationParams("two", false, "off");
-        CompilationParams ck4 = new CompilationParams("one", true, "off");
-        CompilationParams ck5 = new CompilationParams("two", true, "off");
-        CompilationParams ck6 = new CompilationParams("one", false, "limited");
-
-        assertTrue(ck1.equals(ck2));
-        assertTrue(ck1.hashCode() == ck2.hashCode());
-
-        assertFalse(ck1.equals(ck3));
-        assertFalse(ck1.hashCode() == ck3.hashCode());
-
-        assertFalse(ck1.equals(ck4));
-        assertFalse(ck1.hashCode() == ck4.hashCode());
-
-        assertFalse(ck1.equals(ck5));
-        assertFalse(ck1.hashCode() == ck5.hashCode());
-
-        assertFalse(ck1.equals(ck6));
-        assertFalse(ck1.hashCode() == ck6.hashCode());
-    }
-
     @Test
     public void testParseVariable() throws IOException {
         final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
@@ -448,4 +472,1559 @@ public class TestDaffodilProcessor {
         assertEquals(DaffodilParse.XML_MIME_TYPE, infoset.getAttribute(CoreAttributes.MIME_TYPE.key()));
     }
 
+    @Test
+    public void testParsePooledOutputterAfterFailure() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        // the first parse fails part way through, which must not leave any
+        // output behind in the pooled outputter used by the second parse
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run(3);
+        testRunner.assertTransferCount(DaffodilParse.REL_FAILURE, 1);
+        testRunner.assertTransferCount(DaffodilParse.REL_SUCCESS, 2);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        for (MockFlowFile infoset : testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS)) {
+            infoset.assertContentEquals(expectedContent);
+        }
+    }
+
+    @Test
+    public void testUnparsePooledChannel() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.run(3);
+        testRunner.assertTransferCount(DaffodilUnparse.REL_FAILURE, 1);
+        testRunner.assertTransferCount(DaffodilUnparse.REL_SUCCESS, 2);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv")));
+        for (MockFlowFile data : testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS)) {
+            data.assertContentEquals(expectedContent.replace("\r\n", "\n"));
+        }
+    }
+
+    @Test
+    public void testReusableOutputStreamAllocation() throws IOException {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+        final ReusableOutputStream ros = new ReusableOutputStream(1024);
+        final OutputStream sink = OutputStream.nullOutputStream();
+        final byte[] small = new byte[100];
+        final byte[] large = new byte[4096];
+        final ByteBuffer direct = ByteBuffer.allocateDirect(300);
+
+        final int iterations = 10000;
+        final long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        // the first pass warms up the JIT, only the second pass is measured
+        for (int pass = 0; pass < 2; pass++) {
+            final long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                ros.bind(sink);
+                ros.write(small);
+                ros.write(large);
+                ros.write(42);
+                direct.rewind();
+                ros.write(direct);
+                ros.unbind();
+            }
+            allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        }
+        // allow for measurement noise, but this must be far less than a single
+        // byte per iteration
+        assertTrue("allocated " + allocated + " bytes", allocated < iterations);
+    }
+
+    @Test
+    public void testPooledOutputterReuse() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        final byte[] good = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        // a 32 bit number with no data fails to parse after the outputter has started the infoset
+        final byte[] bad = new byte[] { 0x20 };
+        testRunner.enqueue(good);
+        testRunner.enqueue(good);
+        testRunner.enqueue(bad);
+        testRunner.enqueue(good);
+        testRunner.enqueue(good);
+        // a single thread handles every FlowFile of one run
+        testRunner.run(5);
+        testRunner.assertTransferCount(DaffodilParse.REL_SUCCESS, 4);
+        testRunner.assertTransferCount(DaffodilParse.REL_FAILURE, 1);
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        for (MockFlowFile infoset : testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS)) {
+            infoset.assertContentEquals(expected);
+        }
+        testRunner.getFlowFilesForRelationship(DaffodilParse.REL_FAILURE).get(0).assertContentEquals(bad);
+        // one outputter served the first two FlowFiles, and was replaced after the
+        // failure by another that served the last two
+        assertEquals(2, ((DaffodilParse) testRunner.getProcessor()).getPooledOutputtersCreated());
+    }
+
+    @Test
+    public void testWrappedOutputterBlobState() throws IOException {
+        final InfosetOutputter outputter = Daffodil.newXMLTextInfosetOutputter(new ByteArrayOutputStream(), false);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final PipelinedOutputter pipelined = new PipelinedOutputter(outputter, executor);
+            final InfosetOutputter counting = new InfosetStatistics.CountingOutputter(pipelined, new InfosetStatistics());
+            final Path dir = Files.createTempDirectory("nifi-daffodil-");
+            dir.toFile().deleteOnExit();
+
+            // Daffodil only sees the outermost outputter, which must act on the real one
+            counting.setBlobAttributes(dir, "flowfile-", ".bin");
+            assertEquals(dir, outputter.getBlobDirectory());
+            assertEquals("flowfile-", outputter.getBlobPrefix());
+            assertEquals(".bin", counting.getBlobSuffix());
+            counting.setBlobPaths(Collections.singletonList(dir.resolve("flowfile-1.bin")));
+            assertEquals(Collections.singletonList(dir.resolve("flowfile-1.bin")), outputter.getBlobPaths());
+            pipelined.abort();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(baos)) {
+            gz.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] zstd(byte[] data) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZstdOutputStream zs = new ZstdOutputStream(baos)) {
+            zs.write(data);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] unzstd(byte[] data) throws IOException {
+        try (ZstdInputStream zs = new ZstdInputStream(new ByteArrayInputStream(data))) {
+            return zs.readAllBytes();
+        }
+    }
+
+    @Test
+    public void testParseCompressed() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.INPUT_COMPRESSION, DaffodilParse.COMPRESSION_GZIP);
+        testRunner.setProperty(DaffodilParse.OUTPUT_COMPRESSION, DaffodilParse.COMPRESSION_ZSTD);
+        testRunner.enqueue(gzip(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"))));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        assertEquals(expectedContent, new String(unzstd(testRunner.getContentAsByteArray(infoset))));
+        assertEquals(DaffodilParse.ZSTD_MIME_TYPE, infoset.getAttribute(CoreAttributes.MIME_TYPE.key()));
+    }
+
+    @Test
+    public void testParseCompressedLeftOverData() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.INPUT_COMPRESSION, DaffodilParse.COMPRESSION_ZSTD);
+        final byte[] compressed = zstd(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/leftover.bin")));
+        testRunner.enqueue(compressed);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE);
+        final MockFlowFile original = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_FAILURE).get(0);
+        original.assertContentEquals(compressed);
+    }
+
+    @Test
+    public void testUnparseCompressed() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilUnparse.INPUT_COMPRESSION, DaffodilUnparse.COMPRESSION_ZSTD);
+        testRunner.enqueue(zstd(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"))));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv")));
+        data.assertContentEquals(expectedContent.replace("\r\n", "\n"));
+        assertEquals(null, data.getAttribute(CoreAttributes.MIME_TYPE.key()));
+    }
+
+    @Test
+    public void testTranscode() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilTranscode.class);
+        testRunner.setProperty(DaffodilTranscode.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TARGET_DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(CoreAttributes.MIME_TYPE.key(), "text/csv");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"), attributes);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilTranscode.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilTranscode.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv")));
+        data.assertContentEquals(expectedContent.replace("\r\n", "\n"));
+        assertEquals(null, data.getAttribute(CoreAttributes.MIME_TYPE.key()));
+    }
+
+    @Test
+    public void testTranscodeVariable() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilTranscode.class);
+        testRunner.setProperty(DaffodilTranscode.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TARGET_DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        // only the source schema uses the variable, the target uses the default big endian
+        testRunner.setProperty(new PropertyDescriptor.Builder().name("byteOrder").dynamic(true).build(), "littleEndian");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilTranscode.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilTranscode.REL_SUCCESS).get(0);
+        data.assertContentEquals(new byte[]{ (byte)0x10, (byte)0xd1, (byte)0xdf });
+    }
+
+    @Test
+    public void testTranscodeLeftOverData() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilTranscode.class);
+        testRunner.setProperty(DaffodilTranscode.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TARGET_DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/leftover.bin"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilTranscode.REL_FAILURE);
+        final MockFlowFile original = testRunner.getFlowFilesForRelationship(DaffodilTranscode.REL_FAILURE).get(0);
+        original.assertContentEquals(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/leftover.bin")));
+    }
+
+    @Test
+    public void testTranscodeParseFail() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilTranscode.class);
+        testRunner.setProperty(DaffodilTranscode.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TARGET_DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run(2);
+        testRunner.assertTransferCount(DaffodilTranscode.REL_FAILURE, 1);
+        testRunner.assertTransferCount(DaffodilTranscode.REL_SUCCESS, 1);
+        final MockFlowFile original = testRunner.getFlowFilesForRelationship(DaffodilTranscode.REL_FAILURE).get(0);
+        original.assertContentEquals(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+    }
+
+    @Test
+    public void testTranscodeTargetNotFound() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilTranscode.class);
+        testRunner.setProperty(DaffodilTranscode.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TARGET_DFDL_SCHEMA_FILE, "/does/not/exist.dfdl.xsd");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilTranscode.REL_FAILURE);
+    }
+
+    /**
+     * Transform used by testTranscodeTransform that upper cases all simple element values
+     */
+    public static class UpperCaseTransform extends XMLFilterImpl {
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            final char[] upper = new String(ch, start, length).toUpperCase().toCharArray();
+            super.characters(upper, 0, upper.length);
+        }
+    }
+
+    @Test
+    public void testTranscodeTransform() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilTranscode.class);
+        testRunner.setProperty(DaffodilTranscode.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TARGET_DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilTranscode.TRANSFORM_CLASS, UpperCaseTransform.class.getName());
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilTranscode.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilTranscode.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv")));
+        data.assertContentEquals(expectedContent.replace("\r\n", "\n").toUpperCase());
+    }
+
+    @Test
+    public void testCacheMaxMemory() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.CACHE_MAX_MEMORY, "100 MB");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        infoset.assertContentEquals(expectedContent);
+        assertTrue(((DaffodilParse) testRunner.getProcessor()).getCacheWeight() > 0);
+    }
+
+    @Test
+    public void testCacheMaxMemoryTooSmall() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        // every compiled schema is larger than this, so it is evicted as soon as it is
+        // loaded, but the FlowFile is still parsed
+        testRunner.setProperty(DaffodilParse.CACHE_MAX_MEMORY, "1 B");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        assertEquals(0, ((DaffodilParse) testRunner.getProcessor()).getCacheWeight());
+    }
+
+    @Test
+    public void testParseValidationSampleInterval() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.VALIDATION_SAMPLE_INTERVAL, "2");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run(3);
+        // tokens.csv is not valid according to full validation, but sampled validation
+        // errors are only recorded and do not cause failure
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 3);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        int sampled = 0;
+        for (MockFlowFile infoset : testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS)) {
+            infoset.assertContentEquals(expectedContent);
+            if (infoset.getAttribute(DaffodilParse.VALIDATION_MODE_ATTRIBUTE) != null) {
+                sampled++;
+                assertEquals(DaffodilParse.VALIDATION_MODE_FULL, infoset.getAttribute(DaffodilParse.VALIDATION_MODE_ATTRIBUTE));
+                assertEquals("false", infoset.getAttribute(DaffodilParse.VALIDATION_VALID_ATTRIBUTE));
+                assertTrue(Integer.parseInt(infoset.getAttribute(DaffodilParse.VALIDATION_ERRORS_ATTRIBUTE)) > 0);
+            }
+        }
+        assertEquals(2, sampled);
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("Sampled Full Validations"));
+        assertEquals(Long.valueOf(2), testRunner.getCounterValue("Sampled Full Validations Invalid"));
+    }
+
+    @Test
+    public void testParseValidationSamplePercentage() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.VALIDATION_SAMPLE_PERCENTAGE, "100");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        assertEquals(DaffodilParse.VALIDATION_MODE_FULL, infoset.getAttribute(DaffodilParse.VALIDATION_MODE_ATTRIBUTE));
+        assertEquals("true", infoset.getAttribute(DaffodilParse.VALIDATION_VALID_ATTRIBUTE));
+        assertEquals("0", infoset.getAttribute(DaffodilParse.VALIDATION_ERRORS_ATTRIBUTE));
+    }
+
+    @Test
+    public void testParseValidationSampleNotSampled() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.VALIDATION_MODE, DaffodilParse.VALIDATION_MODE_LIMITED);
+        testRunner.setProperty(DaffodilParse.VALIDATION_SAMPLE_PERCENTAGE, "0");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        // not sampled, so limited validation errors still cause failure
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE);
+        final MockFlowFile original = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_FAILURE).get(0);
+        assertEquals(null, original.getAttribute(DaffodilParse.VALIDATION_MODE_ATTRIBUTE));
+    }
+
+    @Test
+    public void testParseValidationSampleBothInvalid() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.VALIDATION_SAMPLE_PERCENTAGE, "10");
+        testRunner.setProperty(DaffodilParse.VALIDATION_SAMPLE_INTERVAL, "10");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testParseCSVValidationFullSharedGrammar() throws IOException {
+        final int before = SharedGrammarValidatorFactory.getSharedGrammarCount();
+        for (int i = 0; i < 2; i++) {
+            // separate processors each compile their own DataProcessor, but share one grammar
+            final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+            testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+            testRunner.setProperty(DaffodilParse.VALIDATION_MODE, DaffodilParse.VALIDATION_MODE_FULL);
+            testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+            testRunner.run();
+            testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE);
+        }
+        assertTrue(SharedGrammarValidatorFactory.getSharedGrammarCount() <= before + 1);
+    }
+
+    @Test
+    public void testParseTunables() {
+        assertTrue(DaffodilParse.parseTunables(null).isEmpty());
+        assertTrue(DaffodilParse.parseTunables(" , \n").isEmpty());
+        final Map<String, String> tunables = DaffodilParse.parseTunables("maxOccursBounds = 10,\n  readerByteBufferSize=8192 ");
+        assertEquals(2, tunables.size());
+        assertEquals("10", tunables.get("maxOccursBounds"));
+        assertEquals("8192", tunables.get("readerByteBufferSize"));
+        // order does not matter for caching
+        assertEquals(tunables, DaffodilParse.parseTunables("readerByteBufferSize=8192\nmaxOccursBounds=10"));
+    }
+
+    @Test
+    public void testTunablesNotValid() {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.TUNABLES, "maxOccursBounds");
+        testRunner.assertNotValid();
+        testRunner.setProperty(DaffodilParse.TUNABLES, "maxOccursBounds=1,maxOccursBounds=2");
+        testRunner.assertNotValid();
+        testRunner.setProperty(DaffodilParse.TUNABLES, "maxOccursBounds=1");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testCompilationParamsTunables() {
+        final Map<String, String> tunables = DaffodilParse.parseTunables("maxOccursBounds=10");
+        CompilationParams none = new CompilationParams("one", false, "off");
+        CompilationParams tuned1 = new CompilationParams("one", false, "off", tunables);
+        CompilationParams tuned2 = new CompilationParams("one", false, "off", DaffodilParse.parseTunables("maxOccursBounds=10"));
+        CompilationParams tuned3 = new CompilationParams("one", false, "off", DaffodilParse.parseTunables("maxOccursBounds=20"));
+        assertFalse(none.equals(tuned1));
+        assertEquals(tuned1, tuned2);
+        assertEquals(tuned1.hashCode(), tuned2.hashCode());
+        assertFalse(tuned1.equals(tuned3));
+        assertEquals(tunables, tuned1.withoutValidation().getTunables());
+    }
+
+    @Test
+    public void testParseCSVTunables() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        // each record in tokens.csv has more items than this
+        testRunner.setProperty(DaffodilParse.TUNABLES, "maxOccursBounds=5");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE);
+
+        testRunner.setProperty(DaffodilParse.TUNABLES, "maxOccursBounds=20");
+        testRunner.clearTransferState();
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+    }
+
+    @Test
+    public void testParseCSVSchemaPrecompiler() throws IOException {
+        final java.nio.file.Path dir = Files.createTempDirectory("nifi-daffodil-");
+        dir.toFile().deleteOnExit();
+        Files.copy(Paths.get("src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd"), dir.resolve("csv.dfdl.xsd"));
+        final java.util.List<java.nio.file.Path> saved = SchemaPrecompiler.precompile(dir, dir.resolve("out"));
+        assertEquals(1, saved.size());
+        assertEquals(dir.resolve("out").resolve("csv.bin"), saved.get(0));
+
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, saved.get(0).toString());
+        testRunner.setProperty(DaffodilParse.PRE_COMPILED_SCHEMA, "true");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        infoset.assertContentEquals(expectedContent);
+    }
+
+    private static java.util.List<String> split(String input, InfosetSplitter.BoundaryScanner scanner, int bufferSize) throws IOException {
+        final InfosetSplitter splitter = new InfosetSplitter(bufferSize);
+        splitter.reset(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), scanner);
+        final java.util.List<String> infosets = new java.util.ArrayList<>();
+        java.io.InputStream infoset;
+        while ((infoset = splitter.next()) != null) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final byte[] buf = new byte[3];
+            int n;
+            while ((n = infoset.read(buf)) != -1) {
+                baos.write(buf, 0, n);
+            }
+            infosets.add(new String(baos.toByteArray(), StandardCharsets.UTF_8));
+        }
+        return infosets;
+    }
+
+    @Test
+    public void testInfosetSplitter() throws IOException {
+        // small buffer sizes make infosets and boundaries span multiple reads
+        for (int bufferSize : new int[]{1, 4, 7, 64 * 1024}) {
+            assertEquals(java.util.Arrays.asList("{\"a\": 1}\n", "{\"a\": 2}\r\n", "{\"a\": 3}"),
+                split("{\"a\": 1}\n\n{\"a\": 2}\r\n  {\"a\": 3}", new InfosetSplitter.NewlineBoundaryScanner(), bufferSize));
+
+            assertEquals(java.util.Arrays.asList("{\"a\": {\"b\": [\"}\", \"\\\"{\"]}}", "{\"a\": 2}"),
+                split("{\"a\": {\"b\": [\"}\", \"\\\"{\"]}}\n{\"a\": 2}", new InfosetSplitter.JsonBoundaryScanner(), bufferSize));
+
+            assertEquals(java.util.Arrays.asList(
+                    "<?xml version=\"1.0\"?><!-- <a> --><a x=\"/>\"><a/><![CDATA[</a>]]></a>",
+                    "<!DOCTYPE b [<!ELEMENT b ANY>]><b/>",
+                    "<c><d>text</d></c>"),
+                split("<?xml version=\"1.0\"?><!-- <a> --><a x=\"/>\"><a/><![CDATA[</a>]]></a>\n<!DOCTYPE b [<!ELEMENT b ANY>]><b/><c><d>text</d></c>\n",
+                    new InfosetSplitter.XmlBoundaryScanner(), bufferSize));
+
+            assertTrue(split(" \n\t", new InfosetSplitter.XmlBoundaryScanner(), bufferSize).isEmpty());
+        }
+    }
+
+    @Test
+    public void testInfosetSplitterSkipsUnread() throws IOException {
+        final InfosetSplitter splitter = new InfosetSplitter(4);
+        splitter.reset(new ByteArrayInputStream("<a>one</a><b>two</b>".getBytes(StandardCharsets.UTF_8)), new InfosetSplitter.XmlBoundaryScanner());
+        assertEquals('<', splitter.next().read());
+        final java.io.InputStream second = splitter.next();
+        assertEquals('<', second.read());
+        assertEquals('b', second.read());
+        assertEquals(null, splitter.next());
+    }
+
+    @Test
+    public void testUnparseCSVConcatenatedXML() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilUnparse.INFOSET_FRAMING, DaffodilUnparse.INFOSET_FRAMING_CONCATENATED);
+        final String infoset = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")), StandardCharsets.UTF_8);
+        testRunner.enqueue(infoset + "\n" + infoset + infoset);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"))).replace("\r\n", "\n");
+        data.assertContentEquals(expectedContent + expectedContent + expectedContent);
+        data.assertAttributeEquals(DaffodilUnparse.INFOSET_COUNT_ATTRIBUTE, "3");
+    }
+
+    @Test
+    public void testUnparseCSVNewlineDelimitedJSON() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilUnparse.INFOSET_TYPE_JSON);
+        testRunner.setProperty(DaffodilUnparse.INFOSET_FRAMING, DaffodilUnparse.INFOSET_FRAMING_NEWLINE);
+        final String infoset = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.json")), StandardCharsets.UTF_8)
+            .replace("\r", "").replace("\n", "");
+        testRunner.enqueue(infoset + "\n" + infoset + "\n");
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"))).replace("\r\n", "\n");
+        data.assertContentEquals(expectedContent + expectedContent);
+        data.assertAttributeEquals(DaffodilUnparse.INFOSET_COUNT_ATTRIBUTE, "2");
+    }
+
+    @Test
+    public void testUnparseCSVConcatenatedXMLFailure() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilUnparse.INFOSET_FRAMING, DaffodilUnparse.INFOSET_FRAMING_CONCATENATED);
+        final String infoset = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")), StandardCharsets.UTF_8);
+        final String input = infoset + "<ex:wrong xmlns:ex=\"http://example.com\"/>";
+        testRunner.enqueue(input);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_FAILURE);
+        testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_FAILURE).get(0).assertContentEquals(input);
+    }
+
+    @Test
+    public void testParseLeftOverDataRemainder() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        assertFalse(testRunner.getProcessor().getRelationships().contains(DaffodilParse.REL_REMAINDER));
+        testRunner.setProperty(DaffodilParse.LEFT_OVER_DATA, DaffodilParse.LEFT_OVER_DATA_REMAINDER);
+        assertTrue(testRunner.getProcessor().getRelationships().contains(DaffodilParse.REL_REMAINDER));
+
+        // a message with an 8-bit number followed by the start of the next message
+        final byte[] next = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(new byte[]{8, 42});
+        input.write(next);
+        final MockFlowFile original = testRunner.enqueue(input.toByteArray());
+        testRunner.run();
+
+        testRunner.assertTransferCount(DaffodilParse.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(DaffodilParse.REL_REMAINDER, 1);
+        testRunner.assertTransferCount(DaffodilParse.REL_FAILURE, 0);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        // the infoset replaces the content of the original FlowFile
+        infoset.assertAttributeEquals(CoreAttributes.UUID.key(), original.getAttribute(CoreAttributes.UUID.key()));
+        assertTrue(new String(testRunner.getContentAsByteArray(infoset), StandardCharsets.UTF_8).contains("<number>42</number>"));
+        final MockFlowFile remainder = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_REMAINDER).get(0);
+        remainder.assertContentEquals(next);
+        remainder.assertAttributeEquals(DaffodilParse.REMAINDER_OFFSET_ATTRIBUTE, "2");
+
+        // the remainder is a complete message on its own, and without left over data the
+        // lineage is the same as when the remainder relationship is not used
+        testRunner.clearTransferState();
+        testRunner.clearProvenanceEvents();
+        testRunner.enqueue(remainder);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        final MockFlowFile complete = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        complete.assertContentEquals(expectedContent);
+        final String uuid = remainder.getAttribute(CoreAttributes.UUID.key());
+        complete.assertAttributeEquals(CoreAttributes.UUID.key(), uuid);
+        assertTrue(testRunner.getProvenanceEvents().stream().anyMatch(event ->
+            event.getEventType() == ProvenanceEventType.CONTENT_MODIFIED && uuid.equals(event.getFlowFileUuid())));
+    }
+
+    @Test
+    public void testParseLeftOverDataRemainderNotByteAligned() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.LEFT_OVER_DATA, DaffodilParse.LEFT_OVER_DATA_REMAINDER);
+        // leftover.bin only has a single bit left over
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/leftover.bin"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE);
+        final MockFlowFile original = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_FAILURE).get(0);
+        original.assertContentEquals(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/leftover.bin")));
+    }
+
+
+    @Test
+    public void testInfosetStatisticsReport() {
+        final InfosetStatistics statistics = new InfosetStatistics();
+        statistics.getCount("/file").increment();
+        statistics.getCount("/file/item").add(4);
+        statistics.addFlowFile(100, 10000000);
+
+        final String[] lines = statistics.report(1).split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("flowfiles=1 bytes=100 parse=10000us", lines[0]);
+        assertEquals("/file/item count=4", lines[1]);
+        assertEquals(3, statistics.report(10).split("\n").length);
+
+        statistics.clear();
+        assertEquals(0, statistics.getFlowFileCount());
+        assertEquals("flowfiles=0 bytes=0 parse=0us", statistics.report(10));
+    }
+
+    @Test
+    public void testParseCSVInfosetStatistics() throws IOException {
+        final String schema = "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd";
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, schema);
+        testRunner.setProperty(DaffodilParse.INFOSET_STATISTICS_SAMPLE_INTERVAL, "2");
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        }
+        testRunner.run(5);
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 5);
+        final List<MockFlowFile> infosets = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS);
+        // the first sampled FlowFile only warms up and is not recorded
+        infosets.get(0).assertAttributeNotExists(DaffodilParse.INFOSET_STATISTICS_ATTRIBUTE);
+        infosets.get(1).assertAttributeNotExists(DaffodilParse.INFOSET_STATISTICS_ATTRIBUTE);
+        final String first = infosets.get(2).getAttribute(DaffodilParse.INFOSET_STATISTICS_ATTRIBUTE);
+        assertTrue(first.startsWith("flowfiles=1 "));
+        infosets.get(3).assertAttributeNotExists(DaffodilParse.INFOSET_STATISTICS_ATTRIBUTE);
+        final String report = infosets.get(4).getAttribute(DaffodilParse.INFOSET_STATISTICS_ATTRIBUTE);
+        assertTrue(report.startsWith("flowfiles=2 "));
+        // counts are exact, so two identical FlowFiles have twice the counts of one
+        assertTrue(Arrays.asList(first.split("\n")).contains("/file count=1"));
+        assertTrue(Arrays.asList(report.split("\n")).contains("/file count=2"));
+
+        // sampled and unsampled infosets are identical
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        for (MockFlowFile infoset : infosets) {
+            infoset.assertContentEquals(expectedContent);
+        }
+        final InfosetStatistics statistics = ((DaffodilParse) testRunner.getProcessor()).getStatistics(schema);
+        assertEquals(2, statistics.getFlowFileCount());
+    }
+
+    @Test
+    public void testParseStaticConfiguration() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        final DaffodilParse processor = (DaffodilParse) testRunner.getProcessor();
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.VALIDATION_SAMPLE_INTERVAL, "2");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run(2);
+        assertNotNull(processor.getStaticDataProcessor());
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 2);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        for (MockFlowFile infoset : testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS)) {
+            infoset.assertContentEquals(expectedContent);
+        }
+        // the sampled FlowFile still uses the full validation variant
+        testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0).assertAttributeEquals(DaffodilParse.VALIDATION_MODE_ATTRIBUTE, "full");
+        testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(1).assertAttributeNotExists(DaffodilParse.VALIDATION_MODE_ATTRIBUTE);
+
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "${dfdl.schema}");
+        testRunner.run(0);
+        assertNull(processor.getStaticDataProcessor());
+
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.CACHE_SIZE, "0");
+        testRunner.run(0);
+        assertNull(processor.getStaticDataProcessor());
+    }
+
+    @Test
+    public void testParseCSVStylesheet() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.XSLT_STYLESHEET, "src/test/resources/TestDaffodilProcessor/count.xsl");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile result = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        result.assertContentEquals("titles=11 items=11");
+        result.assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), "text/plain");
+    }
+
+    @Test
+    public void testParseStylesheetNotFound() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.XSLT_STYLESHEET, "src/test/resources/TestDaffodilProcessor/missing.xsl");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE);
+    }
+
+    @Test
+    public void testParseStylesheetJsonNotValid() {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.XSLT_STYLESHEET, "src/test/resources/TestDaffodilProcessor/count.xsl");
+        testRunner.assertValid();
+        testRunner.setProperty("infoset-type", DaffodilParse.INFOSET_TYPE_JSON);
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testUnparseCSVStylesheet() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilUnparse.XSLT_STYLESHEET, "src/test/resources/TestDaffodilProcessor/identity.xsl");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv")));
+        data.assertContentEquals(expectedContent.replace("\r\n", "\n"));
+    }
+
+    @Test
+    public void testStylesheetMimeType() throws Exception {
+        final SAXTransformerFactory factory = AbstractDaffodilProcessor.newTransformerFactory();
+        assertEquals("text/plain", AbstractDaffodilProcessor.getStylesheetMimeType(factory.newTemplates(new StreamSource("src/test/resources/TestDaffodilProcessor/count.xsl"))));
+        assertEquals(DaffodilParse.XML_MIME_TYPE, AbstractDaffodilProcessor.getStylesheetMimeType(factory.newTemplates(new StreamSource("src/test/resources/TestDaffodilProcessor/identity.xsl"))));
+    }
+
+    @Test
+    public void testParseCSVFailDiagnosticsAttribute() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.DIAGNOSTICS_ATTRIBUTE_MAX_LENGTH, "20");
+        testRunner.setProperty(DaffodilParse.DIAGNOSTICS_LOG_INTERVAL, "1 hour");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE, 2);
+        final String diagnostics = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_FAILURE).get(0).getAttribute(DaffodilParse.DIAGNOSTICS_ATTRIBUTE);
+        assertEquals(20, diagnostics.length());
+        assertTrue(diagnostics.startsWith("Parse Error"));
+
+        // failures are only logged in the summary when the processor is stopped
+        final List<LogMessage> errors = testRunner.getLogger().getErrorMessages();
+        assertFalse(errors.isEmpty());
+        for (LogMessage error : errors) {
+            assertTrue(formatLogMessage(error).contains("occurrence(s) for DFDL schema"));
+        }
+        assertTrue(errors.stream().anyMatch(m -> formatLogMessage(m).contains("2 occurrence(s) for DFDL schema src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd in the last 1 hour: Failed to parse FlowFile")));
+    }
+
+    private static String formatLogMessage(LogMessage message) {
+        String formatted = message.getMsg();
+        for (Object arg : message.getArgs()) {
+            formatted = formatted.replaceFirst("\\{\\}", java.util.regex.Matcher.quoteReplacement(String.valueOf(arg)));
+        }
+        return formatted;
+    }
+
+    @Test
+    public void testDiagnosticSummary() {
+        assertEquals("Parse Error: Failed to populate record[#] at byte #", DiagnosticSummary.toTemplate("Parse Error: Failed to populate record[12] at byte 3456\nSchema context: line 7"));
+        assertEquals("Left over data. Consumed # bit(s) when parsing FlowFile", AbstractDaffodilProcessor.toTemplate("Left over data. Consumed {} bit(s) when parsing {}", new Object[]{16, new MockFlowFile(1)}));
+        // only the start of a diagnostic is used, however long it is
+        assertEquals("Parse Error: record[#]", DiagnosticSummary.toTemplate("Parse Error: record[12] at byte 3456", 23));
+
+        final MockComponentLog logger = new MockComponentLog("test", this);
+        final DiagnosticSummary summary = new DiagnosticSummary(java.util.concurrent.TimeUnit.HOURS.toNanos(1), "1 hour");
+        summary.add("a.dfdl.xsd", true, "Failed to parse FlowFile", logger);
+        summary.add("a.dfdl.xsd", true, "Failed to parse FlowFile", logger);
+        summary.add("b.dfdl.xsd", false, "Validation Error: #", logger);
+        assertTrue(logger.getErrorMessages().isEmpty());
+        summary.log(logger);
+        assertEquals(1, logger.getErrorMessages().size());
+        assertTrue(formatLogMessage(logger.getErrorMessages().get(0)).contains("2 occurrence(s) for DFDL schema a.dfdl.xsd in the last 1 hour: Failed to parse FlowFile"));
+        assertEquals(1, logger.getWarnMessages().size());
+
+        // nothing new to report
+        summary.log(logger);
+        assertEquals(1, logger.getErrorMessages().size());
+    }
+
+    @Test
+    public void testDiagnosticSummaryLogIfDue() throws InterruptedException {
+        final MockComponentLog logger = new MockComponentLog("test", this);
+        final DiagnosticSummary summary = new DiagnosticSummary(java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(50), "50 millis");
+        summary.add("a.dfdl.xsd", true, "Failed to parse FlowFile", logger);
+        summary.logIfDue(logger);
+        assertTrue(logger.getErrorMessages().isEmpty());
+
+        // the count is logged once the interval has elapsed without another message arriving
+        Thread.sleep(100);
+        summary.logIfDue(logger);
+        assertEquals(1, logger.getErrorMessages().size());
+        summary.logIfDue(logger);
+        assertEquals(1, logger.getErrorMessages().size());
+    }
+
+    @Test
+    public void testDiagnosticSummaryConcurrentLog() throws InterruptedException {
+        final MockComponentLog logger = new MockComponentLog("test", this);
+        final DiagnosticSummary summary = new DiagnosticSummary(java.util.concurrent.TimeUnit.HOURS.toNanos(1), "1 hour");
+        final int threads = 4;
+        final int adds = 20000;
+        final Thread[] adders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            adders[t] = new Thread(() -> {
+                for (int i = 0; i < adds; i++) {
+                    summary.add("a.dfdl.xsd", true, "Failed to parse FlowFile", logger);
+                }
+            });
+            adders[t].start();
+        }
+        // summaries logged while counts are added, including ones that forget
+        // the template, do not lose any counts
+        boolean running = true;
+        while (running) {
+            summary.log(logger);
+            running = false;
+            for (Thread adder : adders) {
+                running |= adder.isAlive();
+            }
+        }
+        for (Thread adder : adders) {
+            adder.join();
+        }
+        summary.log(logger);
+        long total = 0;
+        for (LogMessage message : logger.getErrorMessages()) {
+            total += Long.parseLong(formatLogMessage(message).replaceAll("^.*?(\\d+) occurrence\\(s\\).*$", "$1"));
+        }
+        assertEquals((long) threads * adds, total);
+    }
+
+    @Test
+    public void testParseCSVResultCache() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.RESULT_CACHE_MAX_MEMORY, "1 MB");
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        }
+        // attributes not used by the configuration do not prevent a hit
+        testRunner.enqueue(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv")), Collections.singletonMap("filename", "other"));
+        testRunner.run(4);
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 4);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        for (MockFlowFile infoset : testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS)) {
+            infoset.assertContentEquals(expectedContent);
+            infoset.assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), DaffodilParse.XML_MIME_TYPE);
+        }
+        assertEquals(Long.valueOf(3), testRunner.getCounterValue("Result Cache Hits"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Result Cache Misses"));
+
+        testRunner.clearTransferState();
+        testRunner.enqueue("not,enough\n");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"));
+        testRunner.run(2);
+        // failures are never cached
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_FAILURE, 2);
+    }
+
+    @Test
+    public void testParseResultCacheKey() {
+        final byte[] content = "abc".getBytes(StandardCharsets.UTF_8);
+        final ParseResultCache cache = new ParseResultCache(1024, 16);
+        final ParseResultCache.Key key = new ParseResultCache.Key("a.dfdl.xsd", false, Collections.emptyMap(), "xml", null, content);
+        cache.put(key, new ParseResultCache.Entry(new byte[]{1}, -1, null));
+        assertNotNull(cache.get(new ParseResultCache.Key("a.dfdl.xsd", false, Collections.emptyMap(), "xml", null, "abc".getBytes(StandardCharsets.UTF_8))));
+        assertNull(cache.get(new ParseResultCache.Key("a.dfdl.xsd", false, Collections.emptyMap(), "xml", null, "abd".getBytes(StandardCharsets.UTF_8))));
+        assertNull(cache.get(new ParseResultCache.Key("a.dfdl.xsd", false, Collections.singletonMap("v", "1"), "xml", null, content)));
+        assertNull(cache.get(new ParseResultCache.Key("a.dfdl.xsd", false, Collections.emptyMap(), "json", null, content)));
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(3, cache.stats().missCount());
+
+        // results larger than the maximum memory are not kept
+        final ParseResultCache.Key big = new ParseResultCache.Key("b.dfdl.xsd", false, Collections.emptyMap(), "xml", null, content);
+        cache.put(big, new ParseResultCache.Entry(new byte[2048], -1, null));
+        assertNull(cache.get(big));
+    }
+
+    /**
+     * Re-encode JSON text as one of the binary infoset types
+     */
+    private static byte[] toBinaryJson(String json, String infosetType) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonParser parser = new JsonFactory().createParser(json);
+             JsonGenerator generator = BinaryJsonInfoset.getFactory(infosetType).createGenerator(out)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode each infoset of one of the binary infoset types as JSON text
+     */
+    private static List<String> fromBinaryJson(byte[] data, String infosetType) throws IOException {
+        final List<String> infosets = new ArrayList<>();
+        final BinaryJsonInfoset.Reader reader = new BinaryJsonInfoset.Reader(infosetType, new ByteArrayInputStream(data));
+        InputStream infoset;
+        while ((infoset = reader.next()) != null) {
+            infosets.add(new String(ByteStreams.toByteArray(infoset), StandardCharsets.UTF_8));
+        }
+        return infosets;
+    }
+
+    private static String compactJson(String json) {
+        // the test infosets have no whitespace in values
+        return json.replaceAll("\\s", "");
+    }
+
+    @Test
+    public void testParseCSVCbor() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilParse.INFOSET_TYPE_CBOR);
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        assertEquals(DaffodilParse.CBOR_MIME_TYPE, infoset.getAttribute(CoreAttributes.MIME_TYPE.key()));
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.json")), StandardCharsets.UTF_8);
+        final List<String> infosets = fromBinaryJson(testRunner.getContentAsByteArray(infoset), DaffodilParse.INFOSET_TYPE_CBOR);
+        assertEquals(Collections.singletonList(compactJson(expectedContent)), infosets);
+    }
+
+    @Test
+    public void testUnparseCSVAttributeSmile() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilUnparse.INFOSET_TYPE_ATTRIBUTE);
+        final String json = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.json")), StandardCharsets.UTF_8);
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(CoreAttributes.MIME_TYPE.key(), DaffodilUnparse.SMILE_MIME_TYPE);
+        testRunner.enqueue(toBinaryJson(json, DaffodilUnparse.INFOSET_TYPE_SMILE), attributes);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"))).replace("\r\n", "\n");
+        data.assertContentEquals(expectedContent);
+        assertEquals(null, data.getAttribute(CoreAttributes.MIME_TYPE.key()));
+    }
+
+    @Test
+    public void testUnparseCSVConcatenatedCbor() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilUnparse.INFOSET_TYPE_CBOR);
+        testRunner.setProperty(DaffodilUnparse.INFOSET_FRAMING, DaffodilUnparse.INFOSET_FRAMING_CONCATENATED);
+        final String json = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.json")), StandardCharsets.UTF_8);
+        final byte[] infoset = toBinaryJson(json, DaffodilUnparse.INFOSET_TYPE_CBOR);
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(infoset);
+        input.write(infoset);
+        testRunner.enqueue(input.toByteArray());
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = testRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        final String expectedContent = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"))).replace("\r\n", "\n");
+        data.assertContentEquals(expectedContent + expectedContent);
+        data.assertAttributeEquals(DaffodilUnparse.INFOSET_COUNT_ATTRIBUTE, "2");
+    }
+
+    @Test
+    public void testUnparseNewlineDelimitedCborFailure() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        testRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilUnparse.INFOSET_TYPE_CBOR);
+        testRunner.setProperty(DaffodilUnparse.INFOSET_FRAMING, DaffodilUnparse.INFOSET_FRAMING_NEWLINE);
+        final String json = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.json")), StandardCharsets.UTF_8);
+        testRunner.enqueue(toBinaryJson(json, DaffodilUnparse.INFOSET_TYPE_CBOR));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_FAILURE);
+    }
+
+    @Test
+    public void testParseUnparseTypedCbor() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/types.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilParse.INFOSET_TYPE_JSON);
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/types.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final String json = new String(testRunner.getContentAsByteArray(testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0)), StandardCharsets.UTF_8);
+
+        testRunner.clearTransferState();
+        testRunner.setProperty("infoset-type", DaffodilParse.INFOSET_TYPE_CBOR);
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/types.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final byte[] cbor = testRunner.getContentAsByteArray(testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0));
+
+        // numbers and booleans are native values, not strings
+        final List<JsonToken> values = new ArrayList<>();
+        try (JsonParser parser = BinaryJsonInfoset.getFactory(DaffodilParse.INFOSET_TYPE_CBOR).createParser(cbor)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token.isScalarValue()) {
+                    values.add(token);
+                }
+            }
+        }
+        assertEquals(Arrays.asList(
+            JsonToken.VALUE_NUMBER_INT, JsonToken.VALUE_NUMBER_FLOAT, JsonToken.VALUE_TRUE, JsonToken.VALUE_STRING,
+            JsonToken.VALUE_NUMBER_INT, JsonToken.VALUE_NUMBER_FLOAT, JsonToken.VALUE_FALSE, JsonToken.VALUE_STRING), values);
+
+        // and decode to the same JSON as the JSON infoset, with unquoted numbers and booleans
+        assertEquals(Collections.singletonList(compactJson(json)), fromBinaryJson(cbor, DaffodilParse.INFOSET_TYPE_CBOR));
+
+        final TestRunner unparseRunner = TestRunners.newTestRunner(DaffodilUnparse.class);
+        unparseRunner.setProperty(DaffodilUnparse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/types.dfdl.xsd");
+        unparseRunner.setProperty("infoset-type", DaffodilUnparse.INFOSET_TYPE_CBOR);
+        unparseRunner.enqueue(cbor);
+        unparseRunner.run();
+        unparseRunner.assertAllFlowFilesTransferred(DaffodilUnparse.REL_SUCCESS);
+        final MockFlowFile data = unparseRunner.getFlowFilesForRelationship(DaffodilUnparse.REL_SUCCESS).get(0);
+        data.assertContentEquals(Paths.get("src/test/resources/TestDaffodilProcessor/types.csv"));
+    }
+
+    @Test
+    public void testBinaryJsonInfosetReader() throws IOException {
+        // large enough to need several buffers
+        final StringBuilder sb = new StringBuilder("{\"file\":{\"record\":[");
+        for (int i = 0; i < 10000; i++) {
+            sb.append(i == 0 ? "" : ",").append("{\"item\":[\"").append(i).append("\",null]}");
+        }
+        final String large = sb.append("]}}").toString();
+        final String small = "{\"file\":{\"header\":{}}}";
+
+        for (String infosetType : new String[]{DaffodilUnparse.INFOSET_TYPE_CBOR, DaffodilUnparse.INFOSET_TYPE_SMILE}) {
+            final ByteArrayOutputStream input = new ByteArrayOutputStream();
+            input.write(toBinaryJson(large, infosetType));
+            input.write(toBinaryJson(small, infosetType));
+            input.write(toBinaryJson(large, infosetType));
+            assertEquals(Arrays.asList(large, small, large), fromBinaryJson(input.toByteArray(), infosetType));
+
+            // an infoset that is not read is skipped
+            final BinaryJsonInfoset.Reader reader = new BinaryJsonInfoset.Reader(infosetType, new ByteArrayInputStream(input.toByteArray()));
+            reader.next();
+            assertEquals(small, new String(ByteStreams.toByteArray(reader.next()), StandardCharsets.UTF_8));
+            reader.next().read();
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testParseStylesheetCborNotValid() {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty("infoset-type", DaffodilParse.INFOSET_TYPE_CBOR);
+        testRunner.setProperty(DaffodilParse.XSLT_STYLESHEET, "src/test/resources/TestDaffodilProcessor/identity.xsl");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testParseLargeFlowFileThreshold() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.LARGE_FLOWFILE_THRESHOLD, "1 KB");
+        testRunner.setProperty(DaffodilParse.LARGE_FLOWFILE_MAX_CONCURRENT_TASKS, "1");
+        final DaffodilParse processor = (DaffodilParse) testRunner.getProcessor();
+        testRunner.run(1, false, true);
+
+        final byte[] small = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        final byte[] large = new byte[2048];
+        System.arraycopy(small, 0, large, 0, small.length);
+        testRunner.enqueue(large);
+        testRunner.enqueue(small);
+
+        // while another task has the only large FlowFile slot, the large FlowFile is skipped
+        assertTrue(processor.acquireLargeFlowFileTask());
+        assertFalse(processor.acquireLargeFlowFileTask());
+        testRunner.run(1, false, false);
+        testRunner.assertTransferCount(DaffodilParse.REL_SUCCESS, 1);
+        testRunner.assertQueueNotEmpty();
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"))));
+
+        // once the slot is released the large FlowFile is processed
+        processor.releaseLargeFlowFileTask();
+        testRunner.run(1, true, false);
+        testRunner.assertQueueEmpty();
+        assertEquals(2, testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).size()
+            + testRunner.getFlowFilesForRelationship(DaffodilParse.REL_FAILURE).size());
+    }
+
+    @Test
+    public void testNoPluginsProcessors() {
+        assertTrue(DaffodilParse.class.isAnnotationPresent(RequiresInstanceClassLoading.class));
+        assertTrue(DaffodilUnparse.class.isAnnotationPresent(RequiresInstanceClassLoading.class));
+        assertFalse(DaffodilParseNoPlugins.class.isAnnotationPresent(RequiresInstanceClassLoading.class));
+        assertFalse(DaffodilUnparseNoPlugins.class.isAnnotationPresent(RequiresInstanceClassLoading.class));
+
+        final TestRunner withPlugins = TestRunners.newTestRunner(DaffodilParse.class);
+        final TestRunner noPlugins = TestRunners.newTestRunner(DaffodilParseNoPlugins.class);
+        final List<PropertyDescriptor> expected = new ArrayList<>(withPlugins.getProcessor().getPropertyDescriptors());
+        expected.remove(DaffodilParse.PLUGINS_AND_SCHEMAS);
+        assertEquals(expected, noPlugins.getProcessor().getPropertyDescriptors());
+
+        final TestRunner unparseNoPlugins = TestRunners.newTestRunner(DaffodilUnparseNoPlugins.class);
+        assertFalse(unparseNoPlugins.getProcessor().getPropertyDescriptors().contains(DaffodilUnparse.PLUGINS_AND_SCHEMAS));
+        assertTrue(unparseNoPlugins.getProcessor().getPropertyDescriptors().contains(DaffodilUnparse.INFOSET_FRAMING));
+    }
+
+    @Test
+    public void testParseCSVNoPlugins() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParseNoPlugins.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml"))));
+    }
+
+    @Test
+    public void testStreamParseProperties() {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilStreamParse.class);
+        final List<PropertyDescriptor> properties = testRunner.getProcessor().getPropertyDescriptors();
+        assertFalse(properties.contains(DaffodilStreamParse.INPUT_COMPRESSION));
+        assertFalse(properties.contains(DaffodilStreamParse.LEFT_OVER_DATA));
+        assertFalse(properties.contains(DaffodilStreamParse.XSLT_STYLESHEET));
+        assertFalse(properties.contains(DaffodilStreamParse.LARGE_FLOWFILE_THRESHOLD));
+        assertTrue(properties.contains(DaffodilStreamParse.OUTPUT_COMPRESSION));
+
+        testRunner.setProperty(DaffodilStreamParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.assertNotValid();
+        testRunner.setProperty(DaffodilStreamParse.LISTEN_PORT, "9999");
+        testRunner.assertValid();
+        testRunner.setProperty(DaffodilStreamParse.STREAM_SOURCE, DaffodilStreamParse.STREAM_SOURCE_FILE);
+        testRunner.assertNotValid();
+        testRunner.setProperty(DaffodilStreamParse.FILE_TO_TAIL, "messages.bin");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testStreamParseFile() throws IOException {
+        final byte[] message = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        final File file = File.createTempFile("nifi-daffodil-", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(message);
+            fos.write(message);
+            fos.write(message);
+        }
+
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilStreamParse.class);
+        testRunner.setProperty(DaffodilStreamParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilStreamParse.STREAM_SOURCE, DaffodilStreamParse.STREAM_SOURCE_FILE);
+        testRunner.setProperty(DaffodilStreamParse.FILE_TO_TAIL, file.getPath());
+        testRunner.setProperty(DaffodilStreamParse.BATCH_DURATION, "100 millis");
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+        MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(expected + expected + expected);
+        infoset.assertAttributeEquals(DaffodilStreamParse.INFOSET_COUNT_ATTRIBUTE, "3");
+        infoset.assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "0");
+        infoset.assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), DaffodilStreamParse.XML_MIME_TYPE);
+        testRunner.getStateManager().assertStateEquals(DaffodilStreamParse.STATE_POSITION, "9", Scope.LOCAL);
+
+        // a restarted processor continues after the last message it parsed
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.write(message);
+        }
+        testRunner.clearTransferState();
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+        infoset = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(expected);
+        infoset.assertAttributeEquals(DaffodilStreamParse.INFOSET_COUNT_ATTRIBUTE, "1");
+        infoset.assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "9");
+    }
+
+    @Test
+    public void testStreamParseFileRotated() throws IOException {
+        final byte[] message = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        final File file = File.createTempFile("nifi-daffodil-", ".bin");
+        file.deleteOnExit();
+        final File rotated = new File(file.getPath() + ".1");
+        rotated.deleteOnExit();
+        Files.write(file.toPath(), message);
+
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilStreamParse.class);
+        testRunner.setProperty(DaffodilStreamParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilStreamParse.STREAM_SOURCE, DaffodilStreamParse.STREAM_SOURCE_FILE);
+        testRunner.setProperty(DaffodilStreamParse.FILE_TO_TAIL, file.getPath());
+        testRunner.setProperty(DaffodilStreamParse.BATCH_DURATION, "100 millis");
+        // the processor is not stopped between triggers, so the file stays open
+        testRunner.run(1, false, true);
+        testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+        testRunner.getStateManager().assertStateEquals(DaffodilStreamParse.STATE_POSITION, "3", Scope.LOCAL);
+
+        // one more message is written before the file is rotated, and the new file is
+        // longer than the position already read
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.write(message);
+        }
+        assertTrue(file.renameTo(rotated));
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(message);
+            fos.write(message);
+            fos.write(message);
+        }
+
+        // the rest of the rotated file is parsed before switching to the new one
+        testRunner.clearTransferState();
+        testRunner.run(1, false, false);
+        testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+        MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(expected);
+        infoset.assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "3");
+        testRunner.getStateManager().assertStateEquals(DaffodilStreamParse.STATE_POSITION, "0", Scope.LOCAL);
+
+        testRunner.clearTransferState();
+        testRunner.run(1, true, false);
+        testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+        infoset = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(expected + expected + expected);
+        infoset.assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "0");
+        testRunner.getStateManager().assertStateEquals(DaffodilStreamParse.STATE_POSITION, "9", Scope.LOCAL);
+    }
+
+    @Test
+    public void testStreamParseNotByteAligned() throws IOException {
+        final byte[] message = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        final File file = File.createTempFile("nifi-daffodil-", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(message);
+            // a message that ends one bit before the end of its last byte
+            fos.write(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/leftover.bin")));
+            fos.write(message);
+        }
+
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilStreamParse.class);
+        testRunner.setProperty(DaffodilStreamParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilStreamParse.STREAM_SOURCE, DaffodilStreamParse.STREAM_SOURCE_FILE);
+        testRunner.setProperty(DaffodilStreamParse.FILE_TO_TAIL, file.getPath());
+        testRunner.setProperty(DaffodilStreamParse.BATCH_DURATION, "100 millis");
+        testRunner.run();
+        testRunner.assertTransferCount(DaffodilStreamParse.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(DaffodilStreamParse.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0).assertContentEquals(expected);
+        testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_FAILURE).get(0).assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "3");
+        // the rest of the file is skipped rather than parsed from the wrong bit
+        testRunner.getStateManager().assertStateEquals(DaffodilStreamParse.STATE_POSITION, "9", Scope.LOCAL);
+    }
+
+    @Test
+    public void testStreamParseTcp() throws IOException {
+        final byte[] message = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        final int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilStreamParse.class);
+        testRunner.setProperty(DaffodilStreamParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilStreamParse.LISTEN_PORT, Integer.toString(port));
+        testRunner.setProperty(DaffodilStreamParse.LISTEN_ADDRESS, "127.0.0.1");
+        testRunner.setProperty(DaffodilStreamParse.BATCH_DURATION, "100 millis");
+        testRunner.setProperty(DaffodilStreamParse.BATCH_SIZE, "2");
+        testRunner.run(1, false, true);
+        testRunner.assertTransferCount(DaffodilStreamParse.REL_SUCCESS, 0);
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            final OutputStream os = socket.getOutputStream();
+            os.write(message);
+            os.write(message);
+            os.write(message);
+        }
+        testRunner.run(2, true, false);
+        testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 2);
+        final List<MockFlowFile> infosets = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS);
+        infosets.get(0).assertContentEquals(expected + expected);
+        infosets.get(0).assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "0");
+        infosets.get(1).assertContentEquals(expected);
+        infosets.get(1).assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "6");
+    }
+
+    @Test
+    public void testStreamParseTcpStalledMessage() throws IOException {
+        final byte[] message = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml")));
+        final int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilStreamParse.class);
+        testRunner.setProperty(DaffodilStreamParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilStreamParse.LISTEN_PORT, Integer.toString(port));
+        testRunner.setProperty(DaffodilStreamParse.LISTEN_ADDRESS, "127.0.0.1");
+        testRunner.setProperty(DaffodilStreamParse.BATCH_DURATION, "200 millis");
+        testRunner.run(1, false, true);
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            final OutputStream os = socket.getOutputStream();
+            // the sender stalls part way through the second message
+            os.write(message);
+            os.write(message, 0, 2);
+            os.flush();
+            final long start = System.nanoTime();
+            testRunner.run(1, false, false);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+            testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+            MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0);
+            infoset.assertContentEquals(expected);
+            infoset.assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "0");
+
+            // the stalled message is parsed again from its start once the rest arrives
+            testRunner.clearTransferState();
+            os.write(message, 2, message.length - 2);
+            os.flush();
+            testRunner.run(1, false, false);
+            testRunner.assertAllFlowFilesTransferred(DaffodilStreamParse.REL_SUCCESS, 1);
+            infoset = testRunner.getFlowFilesForRelationship(DaffodilStreamParse.REL_SUCCESS).get(0);
+            infoset.assertContentEquals(expected);
+            infoset.assertAttributeEquals(DaffodilStreamParse.INFOSET_COUNT_ATTRIBUTE, "1");
+            infoset.assertAttributeEquals(DaffodilStreamParse.STREAM_OFFSET_ATTRIBUTE, "3");
+        }
+        testRunner.run(1, true, false);
+    }
+
+    @Test
+    public void testStreamParseInputRewind() throws IOException {
+        final File file = File.createTempFile("nifi-daffodil-", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5 });
+        try (StreamParseInput in = new StreamParseInput.TailedFile(file, 0, 10)) {
+            in.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+            final byte[] b = new byte[8];
+            assertEquals(5, in.read(b, 0, 8));
+            // no more data before the deadline is the end of the data, until rewound
+            assertEquals(-1, in.read(b, 0, 8));
+            assertTrue(in.isTimedOut());
+            assertFalse(in.isEnded());
+
+            // the first two bytes were one parsed message, the rest are delivered again
+            in.release(2);
+            in.rewind(2);
+            assertFalse(in.isTimedOut());
+            assertEquals(0, in.getDelivered());
+            assertTrue(in.awaitData(0));
+            Files.write(file.toPath(), new byte[] { 6 }, StandardOpenOption.APPEND);
+            in.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1000));
+            assertEquals(3, in.read(b, 0, 8));
+            assertArrayEquals(new byte[] { 3, 4, 5 }, Arrays.copyOf(b, 3));
+            assertEquals(1, in.read(b, 0, 8));
+            assertEquals(6, b[0]);
+            assertEquals(4, in.getDelivered());
+        }
+    }
+
+    @Test
+    public void testParseContentRange() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.CONTENT_OFFSET, "${payload.offset}");
+        testRunner.setProperty(DaffodilParse.CONTENT_LENGTH, "${payload.length}");
+
+        // a payload embedded between a header and a trailer
+        final byte[] payload = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final ByteArrayOutputStream container = new ByteArrayOutputStream();
+        container.write(new byte[]{1, 2, 3, 4});
+        container.write(payload);
+        container.write(new byte[]{5, 6});
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("payload.offset", "4");
+        attributes.put("payload.length", Integer.toString(payload.length));
+        testRunner.enqueue(container.toByteArray(), attributes);
+
+        // including the trailer in the range is left over data
+        final Map<String, String> tooLong = new HashMap<>(attributes);
+        tooLong.put("payload.length", Integer.toString(payload.length + 2));
+        testRunner.enqueue(container.toByteArray(), tooLong);
+
+        // a range past the end of the content
+        final Map<String, String> outside = new HashMap<>(attributes);
+        outside.put("payload.length", Integer.toString(payload.length + 3));
+        testRunner.enqueue(container.toByteArray(), outside);
+
+        testRunner.run(3);
+        testRunner.assertTransferCount(DaffodilParse.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(DaffodilParse.REL_FAILURE, 2);
+        final MockFlowFile infoset = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0);
+        infoset.assertContentEquals(new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin.xml"))));
+    }
+
+    @Test
+    public void testParseContentRangeRemainder() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/bitlength.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.LEFT_OVER_DATA, DaffodilParse.LEFT_OVER_DATA_REMAINDER);
+        testRunner.setProperty(DaffodilParse.CONTENT_OFFSET, "1");
+
+        // the remainder is the rest of the range, at its offset in the original content
+        final byte[] next = Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/noleftover.bin"));
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(new byte[]{0, 8, 42});
+        input.write(next);
+        testRunner.enqueue(input.toByteArray());
+        testRunner.run();
+
+        testRunner.assertTransferCount(DaffodilParse.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(DaffodilParse.REL_REMAINDER, 1);
+        final MockFlowFile remainder = testRunner.getFlowFilesForRelationship(DaffodilParse.REL_REMAINDER).get(0);
+        remainder.assertContentEquals(next);
+        remainder.assertAttributeEquals(DaffodilParse.REMAINDER_OFFSET_ATTRIBUTE, "3");
+    }
+
+    /**
+     * Records the events it receives, failing on the given event if it is
+     * not negative
+     */
+    private static class RecordingOutputter extends InfosetOutputter {
+        final List<String> events = new ArrayList<>();
+        final Thread caller = Thread.currentThread();
+        boolean otherThread = false;
+        int failAt = -1;
+
+        private void record(String event) throws IOException {
+            otherThread |= Thread.currentThread() != caller;
+            if (events.size() == failAt) {
+                throw new IOException("failed at event " + failAt);
+            }
+            events.add(event);
+        }
+
+        @Override public void reset() { events.clear(); }
+        @Override public void startDocument() throws Exception { record("startDocument"); }
+        @Override public void endDocument() throws Exception { record("endDocument"); }
+        @Override public void startSimple(InfosetSimpleElement simple) throws Exception { record("startSimple"); }
+        @Override public void endSimple(InfosetSimpleElement simple) throws Exception { record("endSimple"); }
+        @Override public void startComplex(InfosetComplexElement complex) throws Exception { record("startComplex"); }
+        @Override public void endComplex(InfosetComplexElement complex) throws Exception { record("endComplex"); }
+        @Override public void startArray(InfosetArray array) throws Exception { record("startArray"); }
+        @Override public void endArray(InfosetArray array) throws Exception { record("endArray"); }
+    }
+
+    @Test
+    public void testPipelinedOutputter() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // enough events to fill every batch several times over
+            final int elements = PipelinedOutputter.BATCH_EVENTS * PipelinedOutputter.QUEUE_BATCHES * 2;
+            final RecordingOutputter expected = new RecordingOutputter();
+            final RecordingOutputter delegate = new RecordingOutputter();
+            final PipelinedOutputter pipelined = new PipelinedOutputter(delegate, executor);
+            for (InfosetOutputter out : Arrays.asList(expected, pipelined)) {
+                out.startDocument();
+                out.startComplex(null);
+                out.startArray(null);
+                for (int i = 0; i < elements; i++) {
+                    out.startSimple(null);
+                    out.endSimple(null);
+                }
+                out.endArray(null);
+                out.endComplex(null);
+                out.endDocument();
+            }
+            pipelined.finish();
+            assertEquals(expected.events, delegate.events);
+            assertTrue(delegate.otherThread);
+
+            // a failure writing the infoset is thrown from the parse thread
+            final RecordingOutputter failing = new RecordingOutputter();
+            failing.failAt = 10;
+            final PipelinedOutputter failed = new PipelinedOutputter(failing, executor);
+            failed.startDocument();
+            try {
+                for (int i = 0; i < elements; i++) {
+                    failed.startSimple(null);
+                    failed.endSimple(null);
+                }
+                failed.endDocument();
+                failed.finish();
+                fail("expected the serializer failure to be thrown");
+            } catch (IOException e) {
+                failed.abort();
+            }
+            assertEquals(10, failing.events.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParseCSVPipelined() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        testRunner.setProperty(DaffodilParse.PIPELINED_SERIALIZATION_THRESHOLD, "0 B");
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.enqueue(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv"));
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 2);
+        final String expected = new String(Files.readAllBytes(Paths.get("src/test/resources/TestDaffodilProcessor/tokens.csv.xml")));
+        for (MockFlowFile infoset : testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS)) {
+            infoset.assertContentEquals(expected);
+        }
+    }
+
+    private static byte[] parseCSV(byte[] input, String tunables, boolean pipelined) {
+        final TestRunner testRunner = TestRunners.newTestRunner(DaffodilParse.class);
+        testRunner.setProperty(DaffodilParse.DFDL_SCHEMA_FILE, "src/test/resources/TestDaffodilProcessor/csv.dfdl.xsd");
+        if (tunables != null) {
+            testRunner.setProperty(DaffodilParse.TUNABLES, tunables);
+        }
+        if (pipelined) {
+            testRunner.setProperty(DaffodilParse.PIPELINED_SERIALIZATION_THRESHOLD, "0 B");
+        }
+        testRunner.enqueue(input);
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(DaffodilParse.REL_SUCCESS, 1);
+        return testRunner.getContentAsByteArray(testRunner.getFlowFilesForRelationship(DaffodilParse.REL_SUCCESS).get(0));
+    }
+
+    @Test
+    public void testParsePipelinedLargeArray() {
+        // enough records for many event batches, and for Daffodil to release walked elements
+        final StringBuilder csv = new StringBuilder("A,B,C,D,E,F,G,H\n");
+        for (int i = 0; i < 20000; i++) {
+            for (int j = 0; j < 8; j++) {
+                csv.append(j == 0 ? "" : ",").append(i * 8 + j);
+            }
+            csv.append('\n');
+        }
+        final byte[] input = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        // pipelined events reference infoset elements, which must not change
+        // whether or not Daffodil releases them after they are walked
+        for (String tunables : new String[] { null, "releaseUnneededInfoset=false" }) {
+            final byte[] direct = parseCSV(input, tunables, false);
+            assertTrue(direct.length > input.length);
+            assertArrayEquals("tunables " + tunables, direct, parseCSV(input, tunables, true));
+        }
+    }
+
 }